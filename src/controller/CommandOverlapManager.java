@@ -1,9 +1,23 @@
 package controller;
 
+import controller.ui.UI;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
+import static controller.RepeatInputHandler.Result.QUEUED;
 import static controller.RepeatInputHandler.Result.UNHANDLED;
 
 /**
@@ -12,102 +26,502 @@ import static controller.RepeatInputHandler.Result.UNHANDLED;
  * Such a command series is solved for on a case by case basis by the Python solver program
  * specified in {@link #solverPath}. Possible delays to avoid device overwhelm as well as
  * situations to await repeated inputs, will be suggested by the program output, which this
- * manager attempts to comply accordingly.
+ * manager attempts to comply accordingly. Solved command series are kept in a {@link PlanCache} so that
+ * repeated transitions won't need the solver. Likewise the solver isn't needed for transitions found in a
+ * possibly given {@link PlanTable} compiled beforehand. When streaming the solver output, each command is
+ * performed as soon as the solver outputs it. The commands are handled as {@link CommandRegistry} ids.
+ * Should a {@link TransmitRateLimiter} be given, each command waits for its device to accept it, instead of the
+ * delays if every device is limited.
  */
 public class CommandOverlapManager implements CommandTransmitManager {
 
-  private static final String AWAIT_REPEATS_COMMAND = "*Await repeats*";
-  private static final String DELAY_COMMAND = "*Delay*";
   private static final long DELAY_AMOUNT_MS = 300L;
   private static final boolean PRINT_OUT_COMMANDS = true;
+  // Times the delays of all the command series
+  private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Command series scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+  // Sends the commands of the command series, which may block while the transmitter is busy
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "Command series");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final String[] SOLVER_OPTIONS = {"--machine-readable", "--use-cache", "--avoid-overwhelm", "--await-repeats"};
 
   private final String solverPath;
-  private final Consumer<String> commandSender;
+  private final CommandSender commandSender;
   private final InputStore inputStore;
+  private final PlanCache planCache;
+  private final PlanTable planTable;
+  private final boolean streamSolverOutput;
+  private final TransmitRateLimiter rateLimiter;
+  // Whether the delays suggested by the solver are performed, i.e. unless the rate limiter limits every device
+  private final boolean solverDelays;
 
-  CommandOverlapManager(String solverPath, Consumer<String> commandSender, InputStore inputStore) {
+  /**
+   * @param rateLimiter if given, limits the rate of the commands, and replaces the delays suggested by the solver
+   * should it limit every device
+   */
+  CommandOverlapManager(String solverPath, CommandSender commandSender, InputStore inputStore,
+                        PlanCache planCache, PlanTable planTable, boolean streamSolverOutput,
+                        TransmitRateLimiter rateLimiter) {
     this.solverPath = solverPath;
     this.commandSender = commandSender;
     this.inputStore = inputStore;
+    this.planCache = planCache;
+    this.planTable = planTable;
+    this.streamSolverOutput = streamSolverOutput;
+    this.rateLimiter = rateLimiter;
+    this.solverDelays = rateLimiter == null || !rateLimiter.limitsAllDevices();
   }
 
   @Override
-  public void performCommandActions(Device device, String remoteCommand, boolean awaitRepeats) {
-    String givenCommand = device.name + " " + remoteCommand;
+  public CompletableFuture<Void> performCommandActions(Device device, String remoteCommand, boolean awaitRepeats,
+                                                       int count, IntConsumer sent) {
+    int givenCommand = CommandRegistry.id(device, remoteCommand);
 
     if (awaitRepeats) {
       RepeatInputHandler.Result result;
-      result = RepeatInputHandler.get().processIfRepeat(givenCommand);
-      if (result != UNHANDLED)
-        return;
-    } else {
-      RepeatInputHandler.get().waitUntilReady();
+      result = RepeatInputHandler.get().processIfRepeat(givenCommand, count);
+      if (result != UNHANDLED && result != QUEUED)
+        return CompletableFuture.completedFuture(null);
     }
+    return whenReady(() -> performCommandSeries(Map.of(device, remoteCommand),
+                                                new CommandSeriesExecution(givenCommand, awaitRepeats, count, sent)));
+  }
+
+  /**
+   * Solves for a single command series reaching the desired states of all the given devices at once.
+   * The desired states are passed to the solver separated by commas, like the current states.
+   */
+  @Override
+  public CompletableFuture<Void> performCommandActions(Map<Device, String> remoteCommands, IntConsumer sent) {
+    return whenReady(() -> performCommandSeries(remoteCommands,
+                                                new CommandSeriesExecution(CommandRegistry.INVALID, false, 1, sent)));
+  }
+
+  /**
+   * Performs the given command series once the {@link RepeatInputHandler} is ready, right away if it is already and
+   * otherwise on {@link #EXECUTOR} rather than the thread finishing the wait.
+   */
+  private static CompletableFuture<Void> whenReady(Supplier<CompletableFuture<Void>> commandSeries) {
+    CompletableFuture<Void> ready = RepeatInputHandler.get().ready();
+    if (!ready.isDone())
+      return ready.thenComposeAsync(ignored -> whenReady(commandSeries), EXECUTOR);
 
     if (PRINT_OUT_COMMANDS)
       System.out.print("\n");
+    return commandSeries.get();
+  }
 
-    final List<String> commandSeries = getCommandSeries(device, remoteCommand);
-    if (commandSeries == null)
-      return;
-
-    for (int i = 0; i < commandSeries.size(); i++) {
-      String command = commandSeries.get(i);
-      if (command.equals(AWAIT_REPEATS_COMMAND) && awaitRepeats) {
-        RepeatInputHandler.get().awaitRepeats(
-            givenCommand,
-            commandSeries.get(i - 1),
-            commandSeries.subList(i + 1, commandSeries.size()),
-            this::performCommand
-        );
-        break; // RepeatInputHandler handles remaining commands
-      }
-      performCommand(command);
+  /**
+   * @return a future completed once the command series has been transmitted, apart from the commands held back for
+   * awaiting repeats, or exceptionally should solving or transmitting fail. Cancelling it stops the command series
+   * before the next command.
+   */
+  private CompletableFuture<Void> performCommandSeries(Map<Device, String> remoteCommands,
+                                                      CommandSeriesExecution execution) {
+    try {
+      solveCommandSeries(remoteCommands, execution);
+    } catch (SolverFailedException e) {
+      UI.showError(e.getMessage());
+      // The rest of the command series, including commands possibly held back for awaiting repeats, is dropped
+      execution.done.cancel(false);
+      return CompletableFuture.failedFuture(e);
     }
+    return execution.finish();
+  }
+
+  /**
+   * Performs the given commands without awaiting repeats.
+   */
+  private CompletableFuture<Void> performCommands(int[] commandSeries, int from, int to, int givenCommand, int count,
+                                                  IntConsumer sent) {
+    CommandSeriesExecution execution = new CommandSeriesExecution(givenCommand, false, count, sent);
+    execution.acceptAll(commandSeries, from, to);
+    return execution.finish();
   }
 
-  private void performCommand(String command) {
+  /**
+   * @return a future completed once the command has been transmitted
+   */
+  private CompletableFuture<Void> performCommand(int command, int repeats) {
     if (PRINT_OUT_COMMANDS)
-      System.out.println(command);
+      System.out.println(CommandRegistry.command(command) + (repeats > 0 ? " (repeated " + repeats + " times)" : ""));
+
+    // The instructions are only printed: a delay is timed by the command series, and an instruction to await
+    // repeats reaching here isn't awaited, e.g. for a press not awaiting repeats. The latter used to be passed on to
+    // the transmitter, which took "*Await" for a device and "repeats*" for a code and failed
+    if (command == CommandRegistry.DELAY || command == CommandRegistry.AWAIT_REPEATS)
+      return CompletableFuture.completedFuture(null);
+    return commandSender.send(command, repeats);
+  }
+
+  private void solveCommandSeries(Map<Device, String> remoteCommands, CommandSeriesExecution execution)
+      throws SolverFailedException {
+    StateVector state = inputStore.snapshot();
+    int[] desiredIds = new int[remoteCommands.size()];
+    int i = 0;
+    for (Map.Entry<Device, String> remoteCommand : remoteCommands.entrySet()) {
+      Device device = remoteCommand.getKey();
+      desiredIds[i++] = getDesiredCommand(state, device, CommandRegistry.id(device, remoteCommand.getValue()));
+    }
 
-    if (command.equals(DELAY_COMMAND)) {
-      try {
-        Thread.sleep(DELAY_AMOUNT_MS);
-      } catch (InterruptedException e) {
-        e.printStackTrace(System.err);
+    int[] commandSeries;
+    if (planTable != null && desiredIds.length == 1) {
+      Device device = CommandRegistry.device(desiredIds[0]);
+      String desiredCommand = CommandRegistry.remoteCommand(desiredIds[0]);
+      commandSeries = planTable.lookup(state, device, desiredCommand);
+      if (commandSeries != null) {
+        execution.acceptAll(commandSeries);
+        return;
       }
+    }
+
+    commandSeries = planCache.get(state, desiredIds);
+    if (PRINT_OUT_COMMANDS)
+      System.out.println("Plan cache " + (commandSeries != null ? "hit" : "miss") + " (" + planCache + ")");
+    if (commandSeries != null) {
+      execution.acceptAll(commandSeries);
+      return;
+    }
+
+    // The solver is spawned from here on, so the strings passed to it are only built now
+    String currentStates = currentStates(state.inputs(), state.statuses());
+    List<String> desiredStates = new ArrayList<>(desiredIds.length);
+    for (int desiredId : desiredIds)
+      desiredStates.add(CommandRegistry.command(desiredId));
+    String desiredState = String.join(", ", desiredStates);
+    if (streamSolverOutput) {
+      solve(currentStates, desiredState, line -> {
+        int command = CommandRegistry.parse(line);
+        if (command == CommandRegistry.INVALID)
+          return false;
+        execution.accept(command);
+        return true;
+      });
+      planCache.put(state, desiredIds, execution.accepted());
     } else {
-      commandSender.accept(command);
+      commandSeries = parse(solve(currentStates, desiredState));
+      planCache.put(state, desiredIds, commandSeries);
+      execution.acceptAll(commandSeries);
     }
   }
 
-  private List<String> getCommandSeries(Device device, String remoteCommand) {
+  private static int[] parse(List<String> output) throws SolverFailedException {
+    int[] commandSeries = new int[output.size()];
+    for (int i = 0; i < commandSeries.length; i++) {
+      commandSeries[i] = CommandRegistry.parse(output.get(i));
+      if (commandSeries[i] == CommandRegistry.INVALID)
+        throw new SolverFailedException("Unexpected output: " + output.get(i));
+    }
+    return commandSeries;
+  }
+
+  /**
+   * @param inputs the input of each device in {@link Device} order
+   * @param statuses the on/off status of each device in {@link Device} order
+   * @return the states in the format expected by the solver
+   */
+  static String currentStates(String[] inputs, boolean[] statuses) {
     List<String> currentStates = new ArrayList<>();
     for (Device dev : Device.values()) {
-      currentStates.add(dev.name + " " + inputStore.loadInput(dev));
+      currentStates.add(dev.name + " " + inputs[dev.ordinal()]);
     }
     for (Device dev : Device.values()) {
-      currentStates.add(dev.name + " " + (inputStore.loadStatus(dev) ? "on" : "off"));
+      currentStates.add(dev.name + " " + (statuses[dev.ordinal()] ? "on" : "off"));
     }
-    String desiredState = getDesiredState(device, remoteCommand);
-    String[] args = {
-        "python", solverPath, String.join(", ", currentStates), desiredState,
-        "--machine-readable", "--use-cache", "--avoid-overwhelm", "--await-repeats"
+    return String.join(", ", currentStates);
+  }
+
+  /**
+   * Spawns the solver for the given states.
+   * @return the solver output
+   */
+  List<String> solve(String currentStates, String desiredState) throws SolverFailedException {
+    StringBuilder error = new StringBuilder();
+    String[] args = solverCommand(currentStates, desiredState);
+    List<String> output = ProcessUtil.executeAndReturnOutput(error::append, args);
+    if (output == null)
+      throw new SolverFailedException(error.toString());
+    return output;
+  }
+
+  /**
+   * Spawns the solver for the given states passing each command to the given consumer as soon as it's output.
+   * The solver is aborted should the consumer reject a command.
+   */
+  void solve(String currentStates, String desiredState, Predicate<String> commandConsumer)
+      throws SolverFailedException {
+    StringBuilder error = new StringBuilder();
+    String[] args = solverCommand(currentStates, desiredState);
+    if (!ProcessUtil.executeAndStreamOutput(commandConsumer, error::append, args))
+      throw new SolverFailedException(error.toString());
+  }
+
+  private String[] solverCommand(String currentStates, String desiredState) {
+    List<String> args = new ArrayList<>(List.of("python", solverPath, currentStates, desiredState));
+    args.addAll(List.of(SOLVER_OPTIONS));
+    return args.toArray(new String[0]);
+  }
+
+  /**
+   * Releases the resources kept for solving, if any.
+   */
+  void close() {
+  }
+
+  /**
+   * @return the solver invocation without the states to solve for
+   */
+  String[] solverCommand() {
+    List<String> args = new ArrayList<>(List.of("python", solverPath));
+    args.addAll(List.of(SOLVER_OPTIONS));
+    return args.toArray(new String[0]);
+  }
+
+  /**
+   * @return the id of the state the given command is to set the device to
+   */
+  private static int getDesiredCommand(StateVector state, Device device, int remoteCommand) {
+    boolean onCommand = CommandRegistry.isOnCommand(remoteCommand);
+    boolean offCommand = CommandRegistry.isOffCommand(remoteCommand);
+    if (onCommand && offCommand) // On/off toggle
+      return CommandRegistry.id(device, state.status(device) ? "off" : "on");
+    if (onCommand || offCommand)
+      return CommandRegistry.id(device, onCommand ? "on" : "off");
+    return remoteCommand;
+  }
+
+  /**
+   * Performs the commands of a command series as they're accepted, holding back the commands following a
+   * possible instruction to await repeats, until the command series is finished. The commands are sent on
+   * {@link #EXECUTOR}, one at a time and without holding the lock of the execution, as sending may block while the
+   * transmitter is busy. The command series is performed as a timed schedule: {@link #SCHEDULER} only times the
+   * delays, after which the commands following are sent on the executor again, so no thread sleeps through the
+   * delay, and commands accepted in the meantime wait for it. Likewise a command waiting for the
+   * {@link #rateLimiter} is sent once its timer has fired. The commands following it wait too, even those to other
+   * devices, since a command may affect the state of other devices than its own, so the order of the command series
+   * is kept. Should the given command have been given multiple times, its first occurrence is transmitted once with
+   * the rest as repeats, which are charged to the rate limit too.
+   * The commands are sent without waiting for them to be transmitted, except that a delay is counted from the
+   * commands before it having been transmitted, and {@link #done} is completed once all of them have been.
+   * Should transmitting a command fail, the command series stops and {@link #done} fails.
+   * Cancelling {@link #done} stops the command series before the next command, waiting for the command being
+   * sent if any, so that no command is sent after the cancellation.
+   */
+  private class CommandSeriesExecution {
+    private final int givenCommand;
+    private final boolean awaitRepeats;
+    // The number of times the given command was given
+    private final int count;
+    // Called with each command sent, also the ones sent by the RepeatInputHandler and the remainder
+    private final IntConsumer sent;
+    // Whether the given command hasn't been performed yet with the repeats of the count
+    private boolean repeatsPending;
+    private final CompletableFuture<Void> done = new CompletableFuture<>() {
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (CommandSeriesExecution.this) {
+          while (sending) {
+            try {
+              CommandSeriesExecution.this.wait();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              break;
+            }
+          }
+          if (continuation != null)
+            continuation.cancel(false);
+          return super.cancel(mayInterruptIfRunning);
+        }
+      }
     };
-    return ProcessUtil.executeAndReturnOutput(args);
-  }
-
-  private String getDesiredState(Device device, String remoteCommand) {
-    String command = remoteCommand;
-    if (device.onCommand.equals(remoteCommand) || device.offCommand.equals(remoteCommand)) {
-      boolean onOffToggle = device.onCommand.equals(device.offCommand);
-      if (onOffToggle) {
-        boolean previousStatus = inputStore.loadStatus(device);
-        command = previousStatus ? "off" : "on";
-      } else {
-        command = device.onCommand.equals(remoteCommand) ? "on" : "off";
+    private int previousCommand = CommandRegistry.INVALID;
+    // Whether the commands from pendingStart on are held back for awaiting repeats
+    private boolean awaitingRepeats;
+    // The accepted commands, of which the ones not performed yet from pendingStart to pendingEnd
+    private int[] pending = new int[16];
+    private int pendingStart;
+    private int pendingEnd;
+    // The last command sent, completed once transmitted as the commands are transmitted in order
+    private CompletableFuture<Void> lastSent = CompletableFuture.completedFuture(null);
+    // Whether the pending commands are being performed on the executor, or about to be
+    private boolean performing;
+    // Whether a command is being sent without holding the lock
+    private boolean sending;
+    // The repeats of the command taken to be sent
+    private int repeats;
+    private Future<?> continuation;
+    private boolean finished;
+
+    private CommandSeriesExecution(int givenCommand, boolean awaitRepeats, int count, IntConsumer sent) {
+      this.givenCommand = givenCommand;
+      this.awaitRepeats = awaitRepeats;
+      this.count = count;
+      this.sent = sent;
+      this.repeatsPending = count > 1;
+    }
+
+    private synchronized void accept(int command) {
+      if (pendingEnd == pending.length)
+        pending = Arrays.copyOf(pending, pending.length * 2);
+      pending[pendingEnd++] = command;
+      if (!awaitingRepeats)
+        performPendingAsync();
+    }
+
+    private void acceptAll(int[] commandSeries) {
+      acceptAll(commandSeries, 0, commandSeries.length);
+    }
+
+    private synchronized void acceptAll(int[] commandSeries, int from, int to) {
+      if (pendingEnd + to - from > pending.length)
+        pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingEnd + to - from));
+      System.arraycopy(commandSeries, from, pending, pendingEnd, to - from);
+      pendingEnd += to - from;
+      if (!awaitingRepeats)
+        performPendingAsync();
+    }
+
+    /**
+     * @return the commands accepted so far
+     */
+    private synchronized int[] accepted() {
+      return Arrays.copyOf(pending, pendingEnd);
+    }
+
+    /**
+     * @return {@link #done}
+     */
+    private synchronized CompletableFuture<Void> finish() {
+      finished = true;
+      performPendingAsync();
+      return done;
+    }
+
+    private synchronized void resume() {
+      continuation = null;
+      performPendingAsync();
+    }
+
+    /**
+     * Performs the pending commands on the executor unless already being performed or waiting for a continuation.
+     */
+    private void performPendingAsync() {
+      if (performing || continuation != null)
+        return;
+      performing = true;
+      EXECUTOR.execute(this::performPending);
+    }
+
+    /**
+     * Sends the pending commands up to the next delay or a command its device doesn't accept yet, after which
+     * continues once a continuation has been scheduled.
+     */
+    private void performPending() {
+      while (true) {
+        int command;
+        int repeats;
+        synchronized (this) {
+          try {
+            command = takePending();
+          } catch (RuntimeException e) {
+            command = CommandRegistry.INVALID;
+            done.completeExceptionally(e);
+          }
+          if (command == CommandRegistry.INVALID) {
+            performing = false;
+            return;
+          }
+          repeats = this.repeats;
+          sending = true;
+        }
+        CompletableFuture<Void> transmitted;
+        try {
+          transmitted = send(command, repeats);
+        } catch (RuntimeException e) {
+          transmitted = CompletableFuture.failedFuture(e);
+        }
+        synchronized (this) {
+          sending = false;
+          notifyAll();
+          lastSent = transmitted;
+        }
+        // Not synchronized, as the transmitter may complete the command while a command is being sent
+        transmitted.whenComplete((result, e) -> {
+          if (e != null)
+            done.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+        });
+      }
+    }
+
+    /**
+     * Takes the next pending command to send along with its {@link #repeats}, performing the delays and
+     * instructions to await repeats up to it. A finished command series is completed once the commands sent have
+     * been transmitted.
+     * @return the command, or {@link CommandRegistry#INVALID} should the command series continue only once a
+     * continuation has been scheduled, more commands have been accepted, or not at all
+     */
+    private int takePending() {
+      while (pendingStart < pendingEnd && !awaitingRepeats) {
+        if (done.isDone())
+          return CommandRegistry.INVALID;
+        int command = pending[pendingStart];
+        if (command == CommandRegistry.DELAY) {
+          pendingStart++;
+          performCommand(command, 0);
+          if (solverDelays) {
+            continuation = lastSent.thenRunAsync(this::resume,
+                CompletableFuture.delayedExecutor(DELAY_AMOUNT_MS, TimeUnit.MILLISECONDS, SCHEDULER));
+            return CommandRegistry.INVALID;
+          }
+        } else if (command == CommandRegistry.AWAIT_REPEATS && awaitRepeats) {
+          pendingStart++;
+          awaitingRepeats = true;
+        } else {
+          Device device = CommandRegistry.device(command);
+          int repeats = command == givenCommand && repeatsPending ? count - 1 : 0;
+          long wait = rateLimiter != null && device != null ? rateLimiter.tryAcquire(device, 1 + repeats) : 0L;
+          if (wait > 0) {
+            continuation = SCHEDULER.schedule(this::resume, wait, TimeUnit.NANOSECONDS);
+            return CommandRegistry.INVALID;
+          }
+          pendingStart++;
+          if (repeats > 0)
+            repeatsPending = false;
+          previousCommand = command;
+          this.repeats = repeats;
+          return command;
+        }
+      }
+      if (finished && !done.isDone()) {
+        if (!lastSent.isDone()) {
+          continuation = lastSent.thenRunAsync(this::resume, SCHEDULER);
+          return CommandRegistry.INVALID;
+        }
+        if (awaitingRepeats) {
+          // RepeatInputHandler handles remaining commands, which are no longer modified once finished
+          int[] remaining = pending;
+          int from = pendingStart;
+          int to = pendingEnd;
+          // The repeats are left to the remainder only if not performed already
+          int remainingCount = repeatsPending ? count : 1;
+          RepeatInputHandler.get().awaitRepeats(givenCommand, previousCommand, this::send,
+              () -> performCommands(remaining, from, to, givenCommand, remainingCount, sent));
+        }
+        done.complete(null);
       }
+      return CommandRegistry.INVALID;
+    }
+
+    private CompletableFuture<Void> send(int command, int repeats) {
+      CompletableFuture<Void> transmitted = performCommand(command, repeats);
+      sent.accept(command);
+      return transmitted;
     }
-    return device.name + " " + command;
   }
 }
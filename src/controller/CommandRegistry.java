@@ -0,0 +1,136 @@
+package controller;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each (device, remote command) pair a dense int id, so that the commands are passed around, compared and
+ * used in keys as ints, and the strings are only needed when talking to the solver, the store or the transmitter.
+ * The solver instructions have ids of their own. Commands not seen before, e.g. ones output by the solver, are
+ * registered as they're first seen.
+ */
+final class CommandRegistry {
+
+  /** The solver instruction to delay before the next command */
+  static final int DELAY = 0;
+  /** The solver instruction to await repeats before performing the remaining commands */
+  static final int AWAIT_REPEATS = 1;
+  static final int INVALID = -1;
+
+  private static final byte ON = 1;
+  private static final byte OFF = 2;
+  private static final byte INPUT = 4;
+
+  private static final Map<Device, Map<String, Integer>> IDS = new EnumMap<>(Device.class);
+  // Solver output lines to ids
+  private static final Map<String, Integer> COMMAND_IDS = new ConcurrentHashMap<>();
+
+  private static volatile Device[] devices = new Device[64];
+  private static volatile String[] remoteCommands = new String[64];
+  private static volatile String[] commands = new String[64];
+  private static volatile byte[] flags = new byte[64];
+  private static int count;
+
+  static {
+    for (Device device : Device.values())
+      IDS.put(device, new ConcurrentHashMap<>());
+    register(null, "*Delay*");
+    register(null, "*Await repeats*");
+  }
+
+  private CommandRegistry() {
+  }
+
+  static int id(Device device, String remoteCommand) {
+    Integer id = IDS.get(device).get(remoteCommand);
+    return id != null ? id : register(device, remoteCommand);
+  }
+
+  /**
+   * Registers the command as one that sets the input of the device, like the buttons saving their input.
+   * @return the id of the command
+   */
+  static synchronized int inputId(Device device, String remoteCommand) {
+    int id = id(device, remoteCommand);
+    flags[id] |= INPUT;
+    return id;
+  }
+
+  /**
+   * @param command a line output by the solver, i.e. "(device) (remote command)" or an instruction
+   * @return the id of the command or {@link #INVALID} if it isn't a command of any device
+   */
+  static int parse(String command) {
+    Integer id = COMMAND_IDS.get(command);
+    if (id != null)
+      return id;
+    String[] split = command.split(" ", 2);
+    if (split.length != 2 || split[1].isBlank())
+      return INVALID;
+    for (Device device : Device.values()) {
+      if (device.name.equals(split[0]))
+        return register(device, split[1]);
+    }
+    return INVALID;
+  }
+
+  /**
+   * @return the device of the command, null for the solver instructions
+   */
+  static Device device(int id) {
+    return devices[id];
+  }
+
+  static String remoteCommand(int id) {
+    return remoteCommands[id];
+  }
+
+  /**
+   * @return the command as output by the solver, i.e. "(device) (remote command)" or an instruction
+   */
+  static String command(int id) {
+    return commands[id];
+  }
+
+  static boolean isOnCommand(int id) {
+    return (flags[id] & ON) != 0;
+  }
+
+  static boolean isOffCommand(int id) {
+    return (flags[id] & OFF) != 0;
+  }
+
+  static boolean isInputCommand(int id) {
+    return (flags[id] & INPUT) != 0;
+  }
+
+  private static synchronized int register(Device device, String remoteCommand) {
+    String command = device != null ? device.name + " " + remoteCommand : remoteCommand;
+    Integer registered = COMMAND_IDS.get(command);
+    if (registered != null)
+      return registered;
+
+    int id = count++;
+    if (id == commands.length) {
+      devices = Arrays.copyOf(devices, id * 2);
+      remoteCommands = Arrays.copyOf(remoteCommands, id * 2);
+      commands = Arrays.copyOf(commands, id * 2);
+      flags = Arrays.copyOf(flags, id * 2);
+    }
+    devices[id] = device;
+    remoteCommands[id] = remoteCommand;
+    commands[id] = command;
+    if (device != null) {
+      flags[id] = (byte)((device.onCommand.equals(remoteCommand) ? ON : 0)
+          | (device.offCommand.equals(remoteCommand) ? OFF : 0));
+    }
+    // Published only once the arrays contain the command
+    COMMAND_IDS.put(command, id);
+    if (device != null)
+      IDS.get(device).put(remoteCommand, id);
+    return id;
+  }
+
+}
@@ -0,0 +1,24 @@
+package controller;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transmits the commands given as {@link CommandRegistry} ids.
+ */
+@FunctionalInterface
+interface CommandSender {
+
+  /**
+   * Sends the command without waiting for it to be transmitted, apart from possibly blocking while the transmitter
+   * is busy.
+   * @param repeats the number of times the command is repeated after transmitting it once, using the repeat
+   * argument of the transmitter
+   * @return a future completed once the command has been transmitted, or exceptionally should transmitting it fail
+   */
+  CompletableFuture<Void> send(int command, int repeats);
+
+  default CompletableFuture<Void> send(int command) {
+    return send(command, 0);
+  }
+
+}
@@ -1,11 +1,46 @@
 package controller;
 
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
 
 public interface CommandTransmitManager {
-  void performCommandActions(Device device, String remoteCommand, boolean awaitRepeats);
+  /**
+   * @return a future completed once the commands have been transmitted
+   */
+  default CompletableFuture<Void> performCommandActions(Device device, String remoteCommand, boolean awaitRepeats) {
+    return performCommandActions(device, remoteCommand, awaitRepeats, 1, command -> {});
+  }
+
+  /**
+   * @param count the number of times the command was given, transmitted with the repeat argument of the transmitter
+   * @param sent called with each command sent for the given command, as a {@link CommandRegistry} id, including the
+   * ones sent after the returned future has completed, e.g. once done awaiting repeats
+   * @return a future completed once the commands have been transmitted
+   */
+  CompletableFuture<Void> performCommandActions(Device device, String remoteCommand, boolean awaitRepeats, int count,
+                                                IntConsumer sent);
+
+  /**
+   * Transmits the given commands as a single transition of multiple devices, without awaiting repeats.
+   * @param sent called with each command sent for the given commands, as a {@link CommandRegistry} id
+   * @return a future completed once the commands have been transmitted
+   */
+  default CompletableFuture<Void> performCommandActions(Map<Device, String> remoteCommands, IntConsumer sent) {
+    CompletableFuture<Void> transmitted = CompletableFuture.completedFuture(null);
+    for (Map.Entry<Device, String> remoteCommand : remoteCommands.entrySet()) {
+      transmitted = transmitted.thenCompose(ignored ->
+          performCommandActions(remoteCommand.getKey(), remoteCommand.getValue(), false, 1, sent));
+    }
+    return transmitted;
+  }
 
-  static CommandTransmitManager direct(Consumer<String> commandSender) {
-    return (device, command, awaitRepeats) -> commandSender.accept(device.name + " " + command);
+  static CommandTransmitManager direct(CommandSender commandSender) {
+    return (device, command, awaitRepeats, count, sent) -> {
+      int id = CommandRegistry.id(device, command);
+      CompletableFuture<Void> transmitted = commandSender.send(id, count - 1);
+      sent.accept(id);
+      return transmitted;
+    };
   }
 }
@@ -3,10 +3,22 @@ package controller;
 import controller.StateHistory.DeviceState;
 import controller.ui.UI;
 
+import javax.swing.*;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 
 import static controller.InputStore.readAccess;
@@ -14,16 +26,49 @@ import static controller.InputStore.readAccess;
 public class Controller {
 
   private static final String PROPERTIES_PATH = "config.properties";
+  private static final String COMPILE_PLANS_OPTION = "--compile-plans";
   private static final String TRANSMIT_DAEMON_PATH;
   private static final String TRANSMIT_PATH;
   private static final String SOLVER_PATH;
   private static final String SAVEFILE_PATH;
+  private static final String SOLVER_MODE;
+  private static final int PLAN_CACHE_SIZE;
+  private static final String PLAN_TABLE_PATH;
+  private static final boolean STREAM_SOLVER_OUTPUT;
+  private static final int TRANSMIT_QUEUE_SIZE;
+  private static final int TRANSMIT_MAX_PROCESSES;
+  private static final String TRANSMIT_SOCKET;
+  private static final String SAVEFILE_WRITE;
+  private static final int SAVEFILE_WRITE_DELAY_MS;
+  private static final String SAVEFILE_FSYNC;
+  private static final boolean SAVEFILE_WATCH;
+  private static final String SHARED_STATE_PATH;
+  private static final int HISTORY_SIZE;
+  private static final String HISTORY_PATH;
+  private static final int HISTORY_COALESCE_MS;
+  private static final String REPEAT_INPUT_POLICY;
+  private static final int INPUT_COALESCE_MS;
+  private static final TransmitRateLimiter RATE_LIMITER;
 
   private static final InputStore SAVE_FILE;
+  private static final TransmitExecutor TRANSMIT_EXECUTOR;
+  private static final CommandSender COMMAND_SENDER;
   private static final CommandTransmitManager TRANSMIT_MANAGER;
 
-  private static final StateHistory STATE_HISTORY = new StateHistory();
-  private static final List<StateHistory.ChangeListener> STATE_CHANGE_LISTENERS = new ArrayList<>();
+  private static final StateHistory STATE_HISTORY;
+  private static final List<StateHistory.ChangeListener> STATE_CHANGE_LISTENERS = new CopyOnWriteArrayList<>();
+  private static final Dispatcher DISPATCHER = new Dispatcher("Command dispatch");
+  // The presses setting the state of devices that are waiting for their turn or being transmitted
+  private static final List<Transmission> TRANSMISSIONS = new ArrayList<>();
+  // The last press not saving the input, if identical presses may still be coalesced into it
+  private static CoalescedPress coalescing;
+  private static final Object COALESCING_LOCK = new Object();
+  // Dispatches the presses being coalesced once their window has closed
+  private static final ScheduledExecutorService COALESCING_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Input coalescing timer");
+    thread.setDaemon(true);
+    return thread;
+  });
 
   static {
     Properties properties = new Properties();
@@ -38,27 +83,211 @@ public class Controller {
     TRANSMIT_PATH = properties.getProperty("Transmit");
     SOLVER_PATH = properties.getProperty("Solver");
     SAVEFILE_PATH = properties.getProperty("Savefile");
+    SOLVER_MODE = properties.getProperty("SolverMode", "spawn");
+    PLAN_CACHE_SIZE = parseInt(properties, "PlanCacheSize", 1024);
+    PLAN_TABLE_PATH = properties.getProperty("PlanTable");
+    STREAM_SOLVER_OUTPUT = Boolean.parseBoolean(properties.getProperty("StreamSolverOutput", "false").trim());
+    TRANSMIT_QUEUE_SIZE = parseInt(properties, "TransmitQueueSize", 16);
+    TRANSMIT_MAX_PROCESSES = parseInt(properties, "TransmitMaxProcesses", 2);
+    TRANSMIT_SOCKET = properties.getProperty("TransmitSocket");
+    SAVEFILE_WRITE = properties.getProperty("SavefileWrite", "sync");
+    SAVEFILE_WRITE_DELAY_MS = parseInt(properties, "SavefileWriteDelayMs", 1000);
+    SAVEFILE_FSYNC = properties.getProperty("SavefileFsync", "periodic");
+    SAVEFILE_WATCH = Boolean.parseBoolean(properties.getProperty("SavefileWatch", "true").trim());
+    SHARED_STATE_PATH = properties.getProperty("SharedState");
+    HISTORY_SIZE = parseInt(properties, "HistorySize", 1000);
+    HISTORY_PATH = properties.getProperty("History");
+    HISTORY_COALESCE_MS = parseInt(properties, "HistoryCoalesceMs", 0);
+    REPEAT_INPUT_POLICY = properties.getProperty("RepeatInputPolicy", "reject");
+    INPUT_COALESCE_MS = parseInt(properties, "InputCoalesceMs", 0);
+    RATE_LIMITER = createRateLimiter(properties);
     checkPaths(TRANSMIT_DAEMON_PATH, TRANSMIT_PATH, SOLVER_PATH, SAVEFILE_PATH);
 
+    // The commands of the buttons get the first ids, the rest are registered as they're first seen
+    for (Device device : Device.values()) {
+      UI.getRemoteCommands(device, true).forEach(command -> CommandRegistry.inputId(device, command));
+      UI.getRemoteCommands(device, false).forEach(command -> CommandRegistry.id(device, command));
+    }
+
+    RepeatInputHandler.get().setPolicy(parseRepeatInputPolicy(REPEAT_INPUT_POLICY));
+
+    TRANSMIT_EXECUTOR = TRANSMIT_PATH != null
+        ? new TransmitExecutor(TRANSMIT_PATH, TRANSMIT_QUEUE_SIZE, TRANSMIT_MAX_PROCESSES)
+        : null;
+    COMMAND_SENDER = TRANSMIT_SOCKET != null ? createLircClient(TRANSMIT_SOCKET) : Controller::sendCode;
+
+    if (HISTORY_SIZE < 1) {
+      UI.showError("Invalid value for \"HistorySize\" in " + PROPERTIES_PATH + ": " + HISTORY_SIZE);
+      exit(new IllegalStateException("Unsupported history size"));
+    }
+    STATE_HISTORY = new StateHistory(HISTORY_SIZE,
+        HISTORY_PATH != null ? new StateHistoryFile(Paths.get(HISTORY_PATH)) : null, HISTORY_COALESCE_MS);
+
+    InputStore saveFile;
     if (SAVEFILE_PATH != null) {
-      SAVE_FILE = new SaveFile(Paths.get(SAVEFILE_PATH));
+      saveFile = new SaveFile(Paths.get(SAVEFILE_PATH), parseWritePolicy(SAVEFILE_WRITE),
+          parseFsyncPolicy(SAVEFILE_FSYNC), SAVEFILE_WRITE_DELAY_MS, SAVEFILE_WATCH);
     } else {
       UI.confirmOrExit("Missing configuration for \"Savefile\" in " + PROPERTIES_PATH + "!\n"
           + "Each device will be assumed to be on and set to red initially and the settings won't be preserved. Proceed?");
-      SAVE_FILE = InputStore.DUMMY;
+      saveFile = InputStore.DUMMY;
     }
+    SAVE_FILE = SHARED_STATE_PATH != null ? new SharedStateStore(Paths.get(SHARED_STATE_PATH), saveFile) : saveFile;
+    // Changes made by others become new states in the history
+    SAVE_FILE.addChangeListener(Controller::saveStateToHistory);
 
     if (SOLVER_PATH != null) {
-      TRANSMIT_MANAGER = new CommandOverlapManager(SOLVER_PATH, Controller::sendCode, readAccess(SAVE_FILE));
+      TRANSMIT_MANAGER = createOverlapManager(SOLVER_MODE, new PlanCache(PLAN_CACHE_SIZE), loadPlanTable());
     } else {
       UI.confirmOrExit("Missing configuration for \"Solver\" in " + PROPERTIES_PATH + "!\n"
           + "The IR command will be sent without resolving potential conflicts. Proceed?");
-      TRANSMIT_MANAGER = CommandTransmitManager.direct(Controller::sendCode);
+      TRANSMIT_MANAGER = CommandTransmitManager.direct(COMMAND_SENDER);
     }
 
     saveStateToHistory();
   }
 
+  private static int parseInt(Properties properties, String property, int defaultValue) {
+    String value = properties.getProperty(property);
+    if (value == null)
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      UI.showError("Invalid value for \"" + property + "\" in " + PROPERTIES_PATH + ": " + value);
+      exit(e);
+      throw e;
+    }
+  }
+
+  /**
+   * @param planTable null if none
+   */
+  private static CommandOverlapManager createOverlapManager(String solverMode, PlanCache planCache,
+                                                            PlanTable planTable) {
+    switch (solverMode) {
+      case "spawn":
+        return new CommandOverlapManager(SOLVER_PATH, COMMAND_SENDER, readAccess(SAVE_FILE),
+            planCache, planTable, STREAM_SOLVER_OUTPUT, RATE_LIMITER);
+      case "worker":
+        return new SolverWorkerManager(SOLVER_PATH, COMMAND_SENDER, readAccess(SAVE_FILE),
+            planCache, planTable, STREAM_SOLVER_OUTPUT, RATE_LIMITER);
+      default:
+        UI.showError("Invalid value for \"SolverMode\" in " + PROPERTIES_PATH + ": " + solverMode);
+        IllegalStateException e = new IllegalStateException("Unsupported solver mode");
+        exit(e);
+        throw e;
+    }
+  }
+
+  private static SaveFile.WritePolicy parseWritePolicy(String writePolicy) {
+    switch (writePolicy) {
+      case "sync":
+        return SaveFile.WritePolicy.SYNC;
+      case "write-behind":
+        return SaveFile.WritePolicy.WRITE_BEHIND;
+      case "atomic":
+        return SaveFile.WritePolicy.ATOMIC;
+      case "journal":
+        return SaveFile.WritePolicy.JOURNAL;
+      default:
+        UI.showError("Invalid value for \"SavefileWrite\" in " + PROPERTIES_PATH + ": " + writePolicy);
+        IllegalStateException e = new IllegalStateException("Unsupported save file write policy");
+        exit(e);
+        throw e;
+    }
+  }
+
+  private static SaveFile.FsyncPolicy parseFsyncPolicy(String fsyncPolicy) {
+    switch (fsyncPolicy) {
+      case "always":
+        return SaveFile.FsyncPolicy.ALWAYS;
+      case "periodic":
+        return SaveFile.FsyncPolicy.PERIODIC;
+      case "never":
+        return SaveFile.FsyncPolicy.NEVER;
+      default:
+        UI.showError("Invalid value for \"SavefileFsync\" in " + PROPERTIES_PATH + ": " + fsyncPolicy);
+        IllegalStateException e = new IllegalStateException("Unsupported save file fsync policy");
+        exit(e);
+        throw e;
+    }
+  }
+
+  /**
+   * @return a limiter of the rates given as "(capacity)/(refill interval in ms)" with "RateLimit" for each device and
+   * "RateLimit.(device)" for a specific device, or null if neither is given
+   */
+  private static TransmitRateLimiter createRateLimiter(Properties properties) {
+    String defaultRate = properties.getProperty("RateLimit");
+    int[] capacities = new int[Device.values().length];
+    long[] refillIntervalsMs = new long[Device.values().length];
+    boolean limited = false;
+    for (Device device : Device.values()) {
+      String property = "RateLimit." + device.name;
+      String rate = properties.getProperty(property);
+      if (rate == null) {
+        property = "RateLimit";
+        rate = defaultRate;
+      }
+      if (rate == null) {
+        // Unlimited, as a bucket with no refill interval is always full, which also keeps the solver delays
+        capacities[device.ordinal()] = 1;
+        continue;
+      }
+      limited = true;
+      String[] split = rate.split("/");
+      try {
+        if (split.length != 2)
+          throw new NumberFormatException("Expected (capacity)/(refill interval in ms)");
+        capacities[device.ordinal()] = Integer.parseInt(split[0].trim());
+        refillIntervalsMs[device.ordinal()] = Long.parseLong(split[1].trim());
+        if (capacities[device.ordinal()] < 1 || refillIntervalsMs[device.ordinal()] < 0)
+          throw new NumberFormatException("Capacity must be positive and refill interval non-negative");
+      } catch (NumberFormatException e) {
+        UI.showError("Invalid value for \"" + property + "\" in " + PROPERTIES_PATH + ": " + rate);
+        exit(e);
+        throw e;
+      }
+    }
+    return limited ? new TransmitRateLimiter(capacities, refillIntervalsMs) : null;
+  }
+
+  private static RepeatInputHandler.Policy parseRepeatInputPolicy(String policy) {
+    switch (policy) {
+      case "reject":
+        return RepeatInputHandler.Policy.REJECT;
+      case "queue":
+        return RepeatInputHandler.Policy.QUEUE;
+      default:
+        UI.showError("Invalid value for \"RepeatInputPolicy\" in " + PROPERTIES_PATH + ": " + policy);
+        IllegalStateException e = new IllegalStateException("Unsupported repeat input policy");
+        exit(e);
+        throw e;
+    }
+  }
+
+  private static LircClient createLircClient(String address) {
+    try {
+      return LircClient.of(address);
+    } catch (IllegalArgumentException e) {
+      UI.showError("Invalid value for \"TransmitSocket\" in " + PROPERTIES_PATH + ": " + address);
+      exit(e);
+      throw e;
+    }
+  }
+
+  private static PlanTable loadPlanTable() {
+    if (PLAN_TABLE_PATH == null)
+      return null;
+    try {
+      return PlanTable.load(Paths.get(PLAN_TABLE_PATH));
+    } catch (IOException e) {
+      System.err.println("Plan table not loaded, run with " + COMPILE_PLANS_OPTION + " to compile it: " + e);
+      return null;
+    }
+  }
+
   private static void checkPaths(String... paths) {
     for (String path : paths) {
       if (path == null)
@@ -71,10 +300,59 @@ public class Controller {
   }
 
   public static void main(String[] args) {
+    if (args.length > 0 && args[0].equals(COMPILE_PLANS_OPTION)) {
+      compilePlans();
+      return;
+    }
     launchTransmitDaemonIfNotRunning();
     UI.show();
   }
 
+  /**
+   * Solves for every transition between the states reachable with the buttons and stores the command series
+   * in a {@link PlanTable} at {@link #PLAN_TABLE_PATH}.
+   */
+  private static void compilePlans() {
+    if (SOLVER_PATH == null || PLAN_TABLE_PATH == null) {
+      UI.showError("Missing configuration for \"Solver\" or \"PlanTable\" in " + PROPERTIES_PATH + "!");
+      exit();
+    }
+    Device[] devices = Device.values();
+    String[][] inputs = new String[devices.length][];
+    String[][] desired = new String[devices.length][];
+    for (Device device : devices) {
+      List<String> stateCommands = UI.getRemoteCommands(device, true);
+      Set<String> desiredCommands = new LinkedHashSet<>(stateCommands);
+      for (String command : UI.getRemoteCommands(device, false)) {
+        if (device.onCommand.equals(command) || device.offCommand.equals(command)) {
+          desiredCommands.add("on");
+          desiredCommands.add("off");
+        } else {
+          desiredCommands.add(command);
+        }
+      }
+      inputs[device.ordinal()] = stateCommands.toArray(new String[0]);
+      desired[device.ordinal()] = desiredCommands.toArray(new String[0]);
+    }
+
+    // Each thread of the compilation gets a solver of its own, closed once the compilation ends
+    Queue<CommandOverlapManager> solvers = new ConcurrentLinkedQueue<>();
+    ThreadLocal<CommandOverlapManager> solver = ThreadLocal.withInitial(() -> {
+      CommandOverlapManager overlapManager = createOverlapManager(SOLVER_MODE, new PlanCache(0), null);
+      solvers.add(overlapManager);
+      return overlapManager;
+    });
+    try {
+      PlanTable.compile(Paths.get(PLAN_TABLE_PATH), inputs, desired, (currentStates, desiredState) ->
+          solver.get().solve(currentStates, desiredState));
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(e);
+    } finally {
+      solvers.forEach(CommandOverlapManager::close);
+    }
+  }
+
   public static void exit(Throwable e) {
     e.printStackTrace(System.err);
     exit();
@@ -93,71 +371,357 @@ public class Controller {
     return ProcessUtil.isRunning(Paths.get(TRANSMIT_DAEMON_PATH).getFileName().toString());
   }
 
-  public static void pressButton(Device device, String remoteCommand, boolean saveInput, boolean awaitRepeats) {
-    TRANSMIT_MANAGER.performCommandActions(device, remoteCommand, awaitRepeats);
+  /**
+   * Presses the button asynchronously after any previously pressed buttons. A press saving the input supersedes
+   * the earlier such presses of the device: they're skipped, or the rest of their commands cancelled if already
+   * being transmitted. A press neither saving the input nor turning the device on or off, e.g. one adjusting the
+   * brightness, is held back for {@link #INPUT_COALESCE_MS} without holding up the dispatcher, coalescing the
+   * identical presses following it until its turn, after which it's transmitted once with the rest as repeats.
+   * A different press ends the wait, the held back one being dispatched before it.
+   * @return a future completed once the commands have been transmitted and the input saved
+   */
+  public static CompletableFuture<Void> pressButton(Device device, String remoteCommand, boolean saveInput,
+                                                   boolean awaitRepeats) {
+    boolean onOffCommand = isOnOffCommand(device, remoteCommand);
+    if (!saveInput && !onOffCommand)
+      return coalescePress(device, remoteCommand, awaitRepeats);
+
+    Transmission transmission = saveInput && !onOffCommand ? supersede(EnumSet.of(device)) : null;
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> performButtonPress(transmission, device, remoteCommand, saveInput,
+                                                             awaitRepeats, 1));
+  }
 
-    if (saveInput)
-      SAVE_FILE.saveInput(device, remoteCommand);
+  private static CompletableFuture<Void> coalescePress(Device device, String remoteCommand, boolean awaitRepeats) {
+    synchronized (COALESCING_LOCK) {
+      if (coalescing != null && coalescing.isIdenticalTo(device, remoteCommand, awaitRepeats)) {
+        coalescing.count++;
+        return coalescing.transmitted;
+      }
+      // A different press ends the wait of the one before
+      dispatchCoalesced();
+      CoalescedPress press = new CoalescedPress(device, remoteCommand, awaitRepeats);
+      coalescing = press;
+      if (INPUT_COALESCE_MS > 0) {
+        press.window = COALESCING_TIMER.schedule(() -> {
+          synchronized (COALESCING_LOCK) {
+            if (coalescing == press)
+              dispatchCoalesced();
+          }
+        }, INPUT_COALESCE_MS, TimeUnit.MILLISECONDS);
+      } else {
+        dispatchCoalesced();
+      }
+      return press.transmitted;
+    }
+  }
 
-    if (device.onCommand.equals(remoteCommand) || device.offCommand.equals(remoteCommand)) {
-      boolean newStatus;
-      if (device.onCommand.equals(device.offCommand))
-        newStatus = !SAVE_FILE.loadStatus(device);
+  /**
+   * Dispatches the press being coalesced unless dispatched already, the identical presses following still being
+   * coalesced into it until its turn. Must hold {@link #COALESCING_LOCK}.
+   */
+  private static void dispatchCoalesced() {
+    CoalescedPress press = coalescing;
+    if (press == null || press.dispatched)
+      return;
+    press.dispatched = true;
+    if (press.window != null)
+      press.window.cancel(false);
+    DISPATCHER.dispatchAsync(() -> {
+      int count;
+      synchronized (COALESCING_LOCK) {
+        if (coalescing == press)
+          coalescing = null;
+        count = press.count;
+      }
+      return performButtonPress(null, press.device, press.remoteCommand, false, press.awaitRepeats, count);
+    }).whenComplete((result, e) -> {
+      if (e == null)
+        press.transmitted.complete(null);
       else
-        newStatus = device.onCommand.equals(remoteCommand);
+        press.transmitted.completeExceptionally(e);
+    });
+  }
+
+  /**
+   * Dispatches the press being coalesced, if any, and prevents coalescing the presses following into it.
+   */
+  private static void endCoalescing() {
+    synchronized (COALESCING_LOCK) {
+      dispatchCoalesced();
+      coalescing = null;
+    }
+  }
+
+  /**
+   * Presses the buttons of multiple devices asynchronously as a single transition, after any previously
+   * pressed buttons. The inputs are saved, superseding the earlier presses of the same devices like
+   * {@link #pressButton(Device, String, boolean, boolean)}.
+   * @return a future completed once the commands have been transmitted and the inputs saved
+   */
+  public static CompletableFuture<Void> pressButtons(Map<Device, String> remoteCommands) {
+    boolean onOffCommands = remoteCommands.entrySet().stream()
+        .anyMatch(remoteCommand -> isOnOffCommand(remoteCommand.getKey(), remoteCommand.getValue()));
+    Transmission transmission = !onOffCommands ? supersede(EnumSet.copyOf(remoteCommands.keySet())) : null;
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> performButtonPresses(transmission, remoteCommands));
+  }
 
-      if (newStatus)
-        SAVE_FILE.saveOnStatus(device);
+  private static boolean isOnOffCommand(Device device, String remoteCommand) {
+    int command = CommandRegistry.id(device, remoteCommand);
+    return CommandRegistry.isOnCommand(command) || CommandRegistry.isOffCommand(command);
+  }
+
+  /**
+   * @return a press of the given devices superseding the earlier ones
+   */
+  private static Transmission supersede(Set<Device> targets) {
+    Transmission transmission = new Transmission(targets);
+    synchronized (TRANSMISSIONS) {
+      for (Transmission earlier : TRANSMISSIONS) {
+        if (transmission.supersedes(earlier))
+          earlier.supersede();
+      }
+      TRANSMISSIONS.add(transmission);
+    }
+    return transmission;
+  }
+
+  /**
+   * Transmits a press unless superseded, after which saves the state set by the press, or the state actually
+   * reached should the press be superseded while being transmitted.
+   * @param transmission null if the press can't be superseded
+   * @param transmit transmits the press, calling the given consumer with each command sent
+   */
+  private static CompletableFuture<Void> transmit(Transmission transmission,
+                                                  Function<IntConsumer, CompletableFuture<Void>> transmit,
+                                                  Runnable save) {
+    if (transmission == null)
+      return transmit.apply(command -> {}).thenRun(save);
+
+    CompletableFuture<Void> transmitted;
+    boolean started = false;
+    try {
+      transmitted = transmission.start(SAVE_FILE.snapshot(), () -> transmit.apply(transmission::commandTransmitted));
+      started = transmitted != null;
+    } finally {
+      // Superseded before its turn, or failed to start
+      if (!started)
+        finishTransmission(transmission);
+    }
+    if (!started)
+      return CompletableFuture.completedFuture(null);
+    return transmitted.handle((result, e) -> {
+      finishTransmission(transmission);
+      if (e == null)
+        save.run();
+      else if (transmitted.isCancelled())
+        SAVE_FILE.apply(transmission.reachedUpdate());
+      else
+        throw new CompletionException(e);
+      return null;
+    });
+  }
+
+  private static void finishTransmission(Transmission transmission) {
+    synchronized (TRANSMISSIONS) {
+      TRANSMISSIONS.remove(transmission);
+    }
+  }
+
+  private static CompletableFuture<Void> performButtonPress(Transmission transmission, Device device,
+                                                            String remoteCommand, boolean saveInput,
+                                                            boolean awaitRepeats, int count) {
+    Function<IntConsumer, CompletableFuture<Void>> transmit =
+        sent -> TRANSMIT_MANAGER.performCommandActions(device, remoteCommand, awaitRepeats, count, sent);
+    return transmit(transmission, transmit, () -> {
+      StateVector state = SAVE_FILE.snapshot();
+      StateUpdate.Builder update = new StateUpdate.Builder();
+      if (saveInput)
+        update.setInput(device, remoteCommand);
+      saveStatusIfOnOffCommand(state, update, device, remoteCommand);
+      SAVE_FILE.apply(update.create());
+    });
+  }
+
+  private static CompletableFuture<Void> performButtonPresses(Transmission transmission,
+                                                              Map<Device, String> remoteCommands) {
+    return transmit(transmission, sent -> TRANSMIT_MANAGER.performCommandActions(remoteCommands, sent), () -> {
+      StateVector state = SAVE_FILE.snapshot();
+      StateUpdate.Builder update = new StateUpdate.Builder();
+      remoteCommands.forEach((device, remoteCommand) -> {
+        update.setInput(device, remoteCommand);
+        saveStatusIfOnOffCommand(state, update, device, remoteCommand);
+      });
+      SAVE_FILE.apply(update.create());
+    });
+  }
+
+  private static void saveStatusIfOnOffCommand(StateVector state, StateUpdate.Builder update, Device device,
+                                               String remoteCommand) {
+    int command = CommandRegistry.id(device, remoteCommand);
+    boolean onCommand = CommandRegistry.isOnCommand(command);
+    boolean offCommand = CommandRegistry.isOffCommand(command);
+    if (onCommand || offCommand) {
+      boolean newStatus;
+      if (onCommand && offCommand)
+        newStatus = !state.status(device);
       else
-        SAVE_FILE.saveOffStatus(device);
+        newStatus = onCommand;
+
+      update.setStatus(device, newStatus);
     }
   }
 
-  private static void sendCode(String command) {
+  /**
+   * Submits the code to the transmit program without waiting for it to finish, so that the queue of the
+   * {@link #TRANSMIT_EXECUTOR} fills up and holds back the command series should the codes come in faster than
+   * they're transmitted.
+   * @return a future failing should the transmit program fail
+   */
+  private static CompletableFuture<Void> sendCode(int command, int repeats) {
     if (TRANSMIT_PATH == null) {
       UI.showError("Missing configuration for \"Transmit\" in " + PROPERTIES_PATH + "! IR command not sent.");
-      return;
+      return CompletableFuture.completedFuture(null);
     }
-    String[] split = command.split(" ", 2);
-    String device = split[0];
-    String code = split[1];
-    executeCommand(TRANSMIT_PATH, device, code);
+    String device = CommandRegistry.device(command).name;
+    String code = CommandRegistry.remoteCommand(command);
+    CompletableFuture<Integer> transmitted;
+    try {
+      transmitted = TRANSMIT_EXECUTOR.submit(device, code, repeats);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CompletableFuture.completedFuture(null);
+    }
+    return transmitted.handle((exitCode, e) -> {
+      if (e instanceof TimeoutException) {
+        System.err.println(e.getMessage());
+        return null;
+      }
+      String message = e != null ? e.getMessage()
+          : exitCode != 0 ? "Transmit failed with exit code " + exitCode + ": " + device + " " + code
+          : null;
+      if (message == null)
+        return null;
+      // The error is shown without holding up the transmits following
+      CompletableFuture.runAsync(() -> UI.showError(message));
+      throw new IllegalStateException("Command execution failed: " + message, e);
+    });
   }
 
   private static void executeCommand(String... command) {
     ProcessUtil.execute(command);
   }
 
-  public static void undo() {
-    try {
-      Collection<DeviceState> newStates = STATE_HISTORY.loadPrevious();
-      for (DeviceState deviceState : newStates) {
-        pressButton(deviceState.device, deviceState.state, true, false);
+  public static CompletableFuture<Void> undo() {
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> {
+      try {
+        return restoreState(STATE_HISTORY.loadPrevious()).thenRun(Controller::stateHistoryChanged);
+      } catch (IllegalStateException e) {
+        exit(e);
+        throw e;
       }
-      stateHistoryChanged();
-    } catch (IllegalStateException e) {
-      exit(e);
-    }
+    });
   }
 
-  public static void redo() {
-    try {
-      Collection<DeviceState> newStates = STATE_HISTORY.loadNext();
-      for (DeviceState deviceState : newStates) {
-        pressButton(deviceState.device, deviceState.state, true, false);
+  public static CompletableFuture<Void> redo() {
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> {
+      try {
+        return restoreState(STATE_HISTORY.loadNext()).thenRun(Controller::stateHistoryChanged);
+      } catch (IllegalStateException e) {
+        exit(e);
+        throw e;
       }
-      stateHistoryChanged();
-    } catch (IllegalStateException e) {
-      exit(e);
+    });
+  }
+
+  /**
+   * Moves directly to the given position in the history, transmitting a single transition to its state.
+   */
+  public static CompletableFuture<Void> jumpTo(int position) {
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> {
+      StateHistory.Timeline timeline = STATE_HISTORY.loadTimeline(0);
+      if (position == timeline.headPosition)
+        return CompletableFuture.completedFuture(null);
+      try {
+        return restoreState(STATE_HISTORY.loadAt(position)).thenRun(Controller::stateHistoryChanged);
+      } catch (IllegalStateException e) {
+        // The history has changed since the position was chosen
+        System.err.println("No state at position " + position + " in the history");
+        return CompletableFuture.completedFuture(null);
+      }
+    });
+  }
+
+  /**
+   * Moves to the given position in the history and restores the given state coalesced into its entry, which then
+   * becomes a new state following it.
+   * @param intermediate the index of the intermediate state, oldest first
+   */
+  public static CompletableFuture<Void> jumpToIntermediate(int position, int intermediate) {
+    endCoalescing();
+    return DISPATCHER.dispatchAsync(() -> {
+      Collection<DeviceState> deviceStates;
+      try {
+        deviceStates = STATE_HISTORY.loadIntermediateAt(position, intermediate);
+      } catch (IllegalStateException e) {
+        // The history has changed since the state was chosen
+        System.err.println("No intermediate state " + intermediate + " at position " + position + " in the history");
+        return CompletableFuture.completedFuture(null);
+      }
+      return restoreState(deviceStates).thenRun(() -> {
+        saveState();
+        stateHistoryChanged();
+      });
+    });
+  }
+
+  /**
+   * Loads the states in the history at most the given number of positions away from the current one asynchronously
+   * after any previously pressed buttons, as they may have to be read from the history file.
+   */
+  public static CompletableFuture<StateHistory.Timeline> getTimeline(int radius) {
+    CompletableFuture<StateHistory.Timeline> timeline = new CompletableFuture<>();
+    DISPATCHER.dispatch(() -> timeline.complete(STATE_HISTORY.loadTimeline(radius)))
+        .whenComplete((result, e) -> {
+          if (e != null)
+            timeline.completeExceptionally(e);
+        });
+    return timeline;
+  }
+
+  /**
+   * Presses the buttons of only those devices whose input differs from the given state, as a single transition.
+   */
+  private static CompletableFuture<Void> restoreState(Collection<DeviceState> deviceStates) {
+    StateVector current = SAVE_FILE.snapshot();
+    Map<Device, String> changed = new EnumMap<>(Device.class);
+    for (DeviceState deviceState : deviceStates) {
+      if (!deviceState.state.equals(current.input(deviceState.device)))
+        changed.put(deviceState.device, deviceState.state);
     }
+    if (changed.isEmpty())
+      return CompletableFuture.completedFuture(null);
+    return performButtonPresses(null, changed);
+  }
+
+  /**
+   * Saves the current state asynchronously after any previously pressed buttons.
+   */
+  public static CompletableFuture<Void> saveStateToHistory() {
+    return DISPATCHER.dispatch(Controller::saveState);
   }
 
-  public static void saveStateToHistory() {
+  private static void saveState() {
+    StateVector state = SAVE_FILE.snapshot();
     List<DeviceState> deviceStates = Arrays.stream(Device.values())
-        .map(d -> new DeviceState(d, SAVE_FILE.loadInput(d)))
+        .map(d -> new DeviceState(d, state.input(d)))
         .collect(Collectors.toList());
-    STATE_HISTORY.save(deviceStates);
-    stateHistoryChanged();
+    if (STATE_HISTORY.save(deviceStates))
+      stateHistoryChanged();
   }
 
   public static boolean canUndo() {
@@ -173,7 +737,31 @@ public class Controller {
   }
 
   private static void stateHistoryChanged() {
-    STATE_CHANGE_LISTENERS.forEach(StateHistory.ChangeListener::stateChanged);
+    SwingUtilities.invokeLater(() -> STATE_CHANGE_LISTENERS.forEach(StateHistory.ChangeListener::stateChanged));
+  }
+
+  /**
+   * Identical presses of a button coalesced into a single transmit.
+   */
+  private static class CoalescedPress {
+    private final Device device;
+    private final String remoteCommand;
+    private final boolean awaitRepeats;
+    private int count = 1;
+    // Whether the press has been dispatched, after which it's coalesced into only until its turn
+    private boolean dispatched;
+    private ScheduledFuture<?> window;
+    private final CompletableFuture<Void> transmitted = new CompletableFuture<>();
+
+    private CoalescedPress(Device device, String remoteCommand, boolean awaitRepeats) {
+      this.device = device;
+      this.remoteCommand = remoteCommand;
+      this.awaitRepeats = awaitRepeats;
+    }
+
+    private boolean isIdenticalTo(Device device, String remoteCommand, boolean awaitRepeats) {
+      return this.device == device && this.remoteCommand.equals(remoteCommand) && this.awaitRepeats == awaitRepeats;
+    }
   }
 
 }
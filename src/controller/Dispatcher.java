@@ -0,0 +1,55 @@
+package controller;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Performs the dispatched actions one at a time in the order they were dispatched. The actions are performed on
+ * a thread of their own, so that the UI remains responsive while e.g. a command series is being transmitted.
+ * An action may also complete asynchronously, e.g. a command series with delays scheduled in between the commands,
+ * in which case the next action is performed once it has completed, without the thread waiting for it.
+ */
+class Dispatcher {
+
+  private final ExecutorService executor;
+
+  // Completed once the last dispatched action has completed
+  private CompletableFuture<Void> last = CompletableFuture.completedFuture(null);
+
+  Dispatcher(String name) {
+    this.executor = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, name);
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * @return a future completed once the action has been performed
+   */
+  CompletableFuture<Void> dispatch(Runnable action) {
+    return dispatchAsync(() -> {
+      action.run();
+      return CompletableFuture.completedFuture(null);
+    });
+  }
+
+  /**
+   * @param action returns a future completed once the action has completed
+   * @return a future completed once the action has completed
+   */
+  synchronized CompletableFuture<Void> dispatchAsync(Supplier<CompletableFuture<Void>> action) {
+    // A failed action doesn't prevent the next ones
+    CompletableFuture<Void> future = last.handle((result, e) -> (Void)null)
+        .thenComposeAsync(ignored -> action.get(), executor);
+    future.whenComplete((result, e) -> {
+      if (e != null)
+        e.printStackTrace(System.err);
+    });
+    last = future;
+    return future;
+  }
+
+}
@@ -10,6 +10,33 @@ public interface InputStore {
   String loadInput(Device device);
   boolean loadStatus(Device device);
 
+  /**
+   * Reads the devices one at a time by default, so a store that may be changed meanwhile overrides this to read
+   * them at once.
+   * @return the inputs and statuses of all devices
+   */
+  default StateVector snapshot() {
+    String[] inputs = new String[Device.values().length];
+    boolean[] statuses = new boolean[Device.values().length];
+    for (Device device : Device.values()) {
+      inputs[device.ordinal()] = loadInput(device);
+      statuses[device.ordinal()] = loadStatus(device);
+    }
+    return new StateVector(inputs, statuses);
+  }
+
+  /**
+   * Saves the changes to the inputs and statuses of multiple devices at once.
+   */
+  void apply(StateUpdate update);
+
+  /**
+   * Registers a listener notified when the stored state is changed by something else than this store, e.g.
+   * another running instance. Such changes aren't noticed by default.
+   */
+  default void addChangeListener(StateHistory.ChangeListener listener) {
+  }
+
   static InputStore readAccess(InputStore original) {
     return new InputStore() {
       @Override
@@ -36,6 +63,21 @@ public interface InputStore {
       public boolean loadStatus(Device device) {
         return original.loadStatus(device);
       }
+
+      @Override
+      public StateVector snapshot() {
+        return original.snapshot();
+      }
+
+      @Override
+      public void apply(StateUpdate update) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public void addChangeListener(StateHistory.ChangeListener listener) {
+        original.addChangeListener(listener);
+      }
     };
   }
 
@@ -77,6 +119,22 @@ public interface InputStore {
       return contents[Device.values().length + device.ordinal()].equals("1");
     }
 
+    @Override
+    public synchronized StateVector snapshot() {
+      return InputStore.super.snapshot();
+    }
+
+    @Override
+    public synchronized void apply(StateUpdate update) {
+      update.inputs().forEach(this::saveInput);
+      update.statuses().forEach((device, on) -> {
+        if (on)
+          saveOnStatus(device);
+        else
+          saveOffStatus(device);
+      });
+    }
+
   }
 
 }
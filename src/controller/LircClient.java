@@ -0,0 +1,173 @@
+package controller;
+
+import controller.ui.UI;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the commands to the transmit daemon over a single persistent connection using the lircd/WinLIRC text
+ * protocol, i.e. "SEND_ONCE (device) (code) [repeats]" answered with a "BEGIN ... SUCCESS|ERROR ... END" reply block.
+ * The commands are pipelined: a command is sent without waiting for the replies to the previous ones, up to
+ * {@link #MAX_PENDING_REPLIES} unanswered commands. A broken connection is reestablished on the next command, and
+ * so is a connection over which no replies have arrived in {@link #REPLY_TIMEOUT_MS} while the limit is reached.
+ */
+class LircClient implements CommandSender {
+
+  private static final int CONNECT_TIMEOUT_MS = 2_000;
+  private static final int MAX_PENDING_REPLIES = 8;
+  private static final long REPLY_TIMEOUT_MS = 5_000L;
+  private static final boolean PRINT_DEBUG = true;
+
+  private final InetSocketAddress address;
+  private final Semaphore pendingReplies = new Semaphore(MAX_PENDING_REPLIES);
+  private final Queue<String> pendingCommands = new ArrayDeque<>();
+
+  private Socket socket;
+  private BufferedWriter out;
+
+  LircClient(InetSocketAddress address) {
+    this.address = address;
+  }
+
+  /**
+   * @param address "(host):(port)"
+   */
+  static LircClient of(String address) {
+    int separator = address.lastIndexOf(':');
+    if (separator < 0)
+      throw new IllegalArgumentException("Expected (host):(port), got " + address);
+    String host = address.substring(0, separator).trim();
+    int port = Integer.parseInt(address.substring(separator + 1).trim());
+    return new LircClient(new InetSocketAddress(host, port));
+  }
+
+  @Override
+  public CompletableFuture<Void> send(int command, int repeats) {
+    String request = "SEND_ONCE " + CommandRegistry.command(command) + (repeats > 0 ? " " + repeats : "");
+    try {
+      while (!pendingReplies.tryAcquire(REPLY_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        System.err.println("No replies from the transmit daemon at " + address + " in " + REPLY_TIMEOUT_MS
+            + " ms, reconnecting");
+        // The daemon is considered gone like with a broken connection, which fails the pending replies
+        disconnect();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return CompletableFuture.completedFuture(null);
+    }
+    try {
+      send(request);
+    } catch (IOException e) {
+      // The connection may have been closed by the daemon in the meantime, so retry once with a new connection
+      disconnect();
+      try {
+        send(request);
+      } catch (IOException retryException) {
+        disconnect();
+        pendingReplies.release();
+        UI.showError("Couldn't connect to the transmit daemon at " + address + "! IR command not sent.\n"
+            + retryException.getMessage());
+        return CompletableFuture.failedFuture(retryException);
+      }
+    }
+    // The reply is only logged, so the command counts as transmitted once sent
+    return CompletableFuture.completedFuture(null);
+  }
+
+  private synchronized void send(String request) throws IOException {
+    if (socket == null)
+      connect();
+    out.write(request);
+    out.write('\n');
+    out.flush();
+    // Replies are matched only while holding the lock, so the reply can't be handled before this
+    pendingCommands.add(request);
+  }
+
+  private void connect() throws IOException {
+    Socket socket = new Socket();
+    socket.connect(address, CONNECT_TIMEOUT_MS);
+    this.socket = socket;
+    this.out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+
+    Thread reader = new Thread(() -> readReplies(socket, in), "Transmit daemon replies");
+    reader.setDaemon(true);
+    reader.start();
+
+    if (PRINT_DEBUG)
+      System.out.println("*Connected to the transmit daemon at " + address + "*");
+  }
+
+  private synchronized void disconnect() {
+    if (socket == null)
+      return;
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+    socket = null;
+    out = null;
+    // Replies to the commands sent over the closed connection won't arrive
+    pendingReplies.release(pendingCommands.size());
+    pendingCommands.clear();
+  }
+
+  private void readReplies(Socket socket, BufferedReader in) {
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.equals("BEGIN"))
+          continue; // E.g. broadcasts of received codes
+        List<String> reply = new ArrayList<>();
+        while ((line = in.readLine()) != null && !line.equals("END"))
+          reply.add(line);
+        if (line == null)
+          break;
+        handleReply(socket, reply);
+      }
+    } catch (IOException ignored) {
+    }
+    synchronized (this) {
+      if (this.socket == socket)
+        disconnect();
+    }
+  }
+
+  /**
+   * @param reply the lines in between BEGIN and END: the command, SUCCESS or ERROR, and possibly DATA
+   */
+  private void handleReply(Socket socket, List<String> reply) {
+    if (reply.isEmpty() || !reply.get(0).startsWith("SEND_ONCE"))
+      return; // E.g. SIGHUP
+    String command;
+    synchronized (this) {
+      if (this.socket != socket)
+        return;
+      command = pendingCommands.poll();
+    }
+    if (command == null)
+      return;
+    pendingReplies.release();
+    if (reply.contains("ERROR")) {
+      int data = reply.indexOf("DATA");
+      String message = data >= 0 && reply.size() > data + 2 ? reply.get(data + 2) : "";
+      System.err.println("Transmit daemon failed to send " + command + ": " + message);
+    }
+  }
+
+}
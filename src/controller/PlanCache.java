@@ -0,0 +1,97 @@
+package controller;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of solved command series retaining the {@link #capacity} most recently used ones.
+ * A command series is stored as is, including the delay and await repeats instructions, so that a cached
+ * command series is performed exactly like the original solver output. The commands are stored as
+ * {@link CommandRegistry} ids.
+ */
+class PlanCache {
+
+  private final int capacity;
+  private final Map<Key, int[]> plans;
+  // Looks up the plans without allocating a key on each press
+  private final Key probe = new Key();
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  PlanCache(int capacity) {
+    this.capacity = capacity;
+    this.plans = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+        if (size() <= PlanCache.this.capacity)
+          return false;
+        evictions++;
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @param desiredIds the ids of the desired state of each device transitioned
+   * @return the plan for the transition from the given state to the desired state, not to be modified, or null if
+   * none is cached
+   */
+  synchronized int[] get(StateVector state, int[] desiredIds) {
+    int[] plan = plans.get(probe.set(state, desiredIds));
+    probe.set(null, null);
+    if (plan == null)
+      misses++;
+    else
+      hits++;
+    return plan;
+  }
+
+  /**
+   * @param plan kept as is, so not to be modified afterwards
+   */
+  synchronized void put(StateVector state, int[] desiredIds, int[] plan) {
+    if (capacity > 0)
+      plans.put(new Key().set(state, desiredIds.clone()), plan);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", size: " + plans.size();
+  }
+
+  /**
+   * Identifies the transition from a state to the desired state of each device transitioned. Only the
+   * {@link #probe} is set more than once.
+   */
+  private static class Key {
+    private StateVector state;
+    private int[] desiredIds;
+    private int hash;
+
+    private Key set(StateVector state, int[] desiredIds) {
+      this.state = state;
+      this.desiredIds = desiredIds;
+      this.hash = state != null ? 31 * state.hashCode() + Arrays.hashCode(desiredIds) : 0;
+      return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o)
+        return true;
+      if (o == null || getClass() != o.getClass())
+        return false;
+      Key that = (Key)o;
+      return hash == that.hash && state.equals(that.state) && Arrays.equals(desiredIds, that.desiredIds);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+}
@@ -0,0 +1,336 @@
+package controller;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * A memory-mapped table of command series compiled beforehand for every transition from a state vector, i.e.
+ * the inputs and on/off statuses of all devices, to a desired state of a single device. Each transition has a
+ * fixed index computed from the positions of the inputs and the desired state in the lists stored in the table
+ * header, so looking up a command series doesn't depend on the size of the table.
+ * <p>
+ * File format, big-endian, where a string is a short length followed by UTF-8 bytes:
+ * <pre>
+ * int magic, int version
+ * int device count, for each device: string name, int n, n input strings, int m, m desired state strings
+ * int dictionary size, dictionary strings
+ * int transition count, for each transition: int offset of its command series, or -1 if it wasn't solved
+ * command series: short n, n shorts referring to the dictionary
+ * </pre>
+ */
+class PlanTable {
+
+  private static final int MAGIC = 0x564C5250; // VLRP
+  private static final int VERSION = 1;
+  private static final int NOT_SOLVED = -1;
+  private static final int SPLIT_THRESHOLD = 32;
+  private static final long MAX_SIZE = Integer.MAX_VALUE - (1 << 20); // Leaves room for the header
+  private static final boolean PRINT_DEBUG = true;
+
+  interface Solver {
+    List<String> solve(String currentStates, String desiredState) throws SolverFailedException;
+  }
+
+  private final ByteBuffer buffer;
+  private final Space space;
+  // The dictionary as CommandRegistry ids
+  private final int[] dictionary;
+  private final int offsetsPosition;
+  private final int plansPosition;
+
+  private PlanTable(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+      throw new IOException("Unsupported plan table format");
+
+    int deviceCount = buffer.getInt();
+    if (deviceCount != Device.values().length)
+      throw new IOException("Plan table compiled for different devices");
+    String[][] inputs = new String[deviceCount][];
+    String[][] desired = new String[deviceCount][];
+    for (Device device : Device.values()) {
+      if (!readString(buffer).equals(device.name))
+        throw new IOException("Plan table compiled for different devices");
+      inputs[device.ordinal()] = readStrings(buffer, buffer.getInt());
+      desired[device.ordinal()] = readStrings(buffer, buffer.getInt());
+    }
+    this.space = new Space(inputs, desired);
+    String[] dictionary = readStrings(buffer, buffer.getInt());
+    this.dictionary = new int[dictionary.length];
+    for (int i = 0; i < dictionary.length; i++) {
+      this.dictionary[i] = CommandRegistry.parse(dictionary[i]);
+      if (this.dictionary[i] == CommandRegistry.INVALID)
+        throw new IOException("Unexpected command in plan table: " + dictionary[i]);
+    }
+
+    if (buffer.getInt() != space.transitionCount)
+      throw new IOException("Corrupted plan table");
+    this.offsetsPosition = buffer.position();
+    this.plansPosition = offsetsPosition + Integer.BYTES * space.transitionCount;
+  }
+
+  static PlanTable load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // The mapping remains valid after the channel is closed
+      return new PlanTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * @param state the current state, read as is rather than copied into arrays as this is done on each press
+   * @return the command series for the transition as {@link CommandRegistry} ids or null if it isn't found in the
+   * table
+   */
+  int[] lookup(StateVector state, Device device, String desiredCommand) {
+    int transition = space.indexOf(state, device, desiredCommand);
+    if (transition < 0)
+      return null;
+    int offset = buffer.getInt(offsetsPosition + Integer.BYTES * transition);
+    if (offset == NOT_SOLVED)
+      return null;
+    int position = plansPosition + offset;
+    int length = buffer.getShort(position);
+    int[] commandSeries = new int[length];
+    for (int i = 0; i < length; i++) {
+      position += Short.BYTES;
+      commandSeries[i] = dictionary[buffer.getShort(position)];
+    }
+    return commandSeries;
+  }
+
+  /**
+   * Solves every transition in parallel and writes the table to the given path. Transitions the solver fails
+   * for are left out of the table.
+   * @param inputs the possible inputs of each device in {@link Device} order
+   * @param desired the possible desired states of each device in {@link Device} order
+   */
+  static void compile(Path path, String[][] inputs, String[][] desired, Solver solver) throws IOException {
+    Space space = new Space(inputs, desired);
+    int[] planIds = new int[space.transitionCount];
+    Map<List<String>, Integer> plans = new ConcurrentHashMap<>();
+    AtomicInteger nextPlanId = new AtomicInteger();
+    AtomicLong solved = new AtomicLong();
+
+    if (PRINT_DEBUG)
+      System.out.println("Compiling " + space.transitionCount + " transitions");
+
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    try {
+      pool.invoke(new CompileTask(0, space.transitionCount, transition -> {
+        try {
+          List<String> plan = solver.solve(space.currentStates(transition), space.desiredState(transition));
+          planIds[transition] = plans.computeIfAbsent(List.copyOf(plan), p -> nextPlanId.getAndIncrement());
+        } catch (SolverFailedException e) {
+          planIds[transition] = NOT_SOLVED;
+        }
+        long count = solved.incrementAndGet();
+        if (PRINT_DEBUG && count % 1000 == 0)
+          System.out.println(count + "/" + space.transitionCount);
+      }));
+    } finally {
+      pool.shutdown();
+    }
+
+    write(path, space, planIds, plans);
+  }
+
+  private static void write(Path path, Space space, int[] planIds, Map<List<String>, Integer> plans)
+      throws IOException {
+    List<List<String>> plansById = new ArrayList<>(plans.keySet());
+    plansById.sort((a, b) -> Integer.compare(plans.get(a), plans.get(b)));
+
+    Map<String, Integer> dictionary = new LinkedHashMap<>();
+    for (List<String> plan : plansById)
+      for (String command : plan)
+        dictionary.putIfAbsent(command, dictionary.size());
+    if (dictionary.size() > Short.MAX_VALUE)
+      throw new IOException("Too many distinct commands for a plan table");
+
+    int[] planOffsets = new int[plansById.size()];
+    long offset = 0;
+    for (int i = 0; i < plansById.size(); i++) {
+      planOffsets[i] = (int)offset;
+      offset += Short.BYTES * (1 + plansById.get(i).size());
+    }
+    if (offset + (long)Integer.BYTES * space.transitionCount > MAX_SIZE)
+      throw new IOException("Too large plan table");
+
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(Device.values().length);
+      for (Device device : Device.values()) {
+        writeString(out, device.name);
+        writeStrings(out, space.inputs[device.ordinal()]);
+        writeStrings(out, space.desired[device.ordinal()]);
+      }
+      writeStrings(out, dictionary.keySet().toArray(new String[0]));
+      out.writeInt(space.transitionCount);
+      for (int planId : planIds)
+        out.writeInt(planId == NOT_SOLVED ? NOT_SOLVED : planOffsets[planId]);
+      for (List<String> plan : plansById) {
+        out.writeShort(plan.size());
+        for (String command : plan)
+          out.writeShort(dictionary.get(command));
+      }
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    if (PRINT_DEBUG)
+      System.out.println("Wrote " + plansById.size() + " distinct command series to " + path);
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+    out.writeInt(strings.length);
+    for (String string : strings)
+      writeString(out, string);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static String[] readStrings(ByteBuffer buffer, int count) {
+    String[] strings = new String[count];
+    for (int i = 0; i < count; i++)
+      strings[i] = readString(buffer);
+    return strings;
+  }
+
+  /**
+   * The transitions, indexed as a mixed radix number of the input of each device, the on/off statuses as bits
+   * and the desired state among the desired states of all devices, in that order of significance.
+   */
+  private static class Space {
+    private static final Device[] DEVICES = Device.values();
+
+    private final String[][] inputs;
+    private final String[][] desired;
+    private final List<Map<String, Integer>> inputIndices = new ArrayList<>();
+    private final List<Map<String, Integer>> desiredIndices = new ArrayList<>();
+    private final int[] desiredOffsets;
+    private final int desiredCount;
+    private final int statusCombinations;
+    private final int transitionCount;
+
+    private Space(String[][] inputs, String[][] desired) throws IOException {
+      this.inputs = inputs;
+      this.desired = desired;
+      this.desiredOffsets = new int[desired.length];
+      int desiredCount = 0;
+      long transitionCount = 1;
+      for (int d = 0; d < inputs.length; d++) {
+        inputIndices.add(indices(inputs[d]));
+        desiredIndices.add(indices(desired[d]));
+        desiredOffsets[d] = desiredCount;
+        desiredCount += desired[d].length;
+        transitionCount *= inputs[d].length;
+      }
+      this.desiredCount = desiredCount;
+      this.statusCombinations = 1 << inputs.length;
+      transitionCount *= (long)statusCombinations * desiredCount;
+      if (transitionCount * Integer.BYTES > MAX_SIZE)
+        throw new IOException("Too many transitions for a plan table");
+      this.transitionCount = (int)transitionCount;
+    }
+
+    private static Map<String, Integer> indices(String[] strings) {
+      Map<String, Integer> indices = new HashMap<>();
+      for (int i = 0; i < strings.length; i++)
+        indices.put(strings[i], i);
+      return indices;
+    }
+
+    private int indexOf(StateVector state, Device device, String desiredCommand) {
+      int index = 0;
+      for (int d = 0; d < inputs.length; d++) {
+        Integer input = inputIndices.get(d).get(state.input(DEVICES[d]));
+        if (input == null)
+          return -1;
+        index = index * inputs[d].length + input;
+      }
+      // The status bits of the table are those of the state
+      int statusBits = state.statusBits();
+      Integer desired = desiredIndices.get(device.ordinal()).get(desiredCommand);
+      if (desired == null)
+        return -1;
+      return (index * statusCombinations + statusBits) * desiredCount + desiredOffsets[device.ordinal()] + desired;
+    }
+
+    private String currentStates(int transition) {
+      int index = transition / desiredCount;
+      int statusBits = index % statusCombinations;
+      index /= statusCombinations;
+      String[] currentInputs = new String[inputs.length];
+      boolean[] statuses = new boolean[inputs.length];
+      for (int d = inputs.length - 1; d >= 0; d--) {
+        currentInputs[d] = inputs[d][index % inputs[d].length];
+        index /= inputs[d].length;
+        statuses[d] = (statusBits & (1 << d)) != 0;
+      }
+      return CommandOverlapManager.currentStates(currentInputs, statuses);
+    }
+
+    private String desiredState(int transition) {
+      int desired = transition % desiredCount;
+      int d = desiredOffsets.length - 1;
+      while (desiredOffsets[d] > desired)
+        d--;
+      return Device.values()[d].name + " " + this.desired[d][desired - desiredOffsets[d]];
+    }
+  }
+
+  private static class CompileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final IntConsumer compiler;
+
+    private CompileTask(int from, int to, IntConsumer compiler) {
+      this.from = from;
+      this.to = to;
+      this.compiler = compiler;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SPLIT_THRESHOLD) {
+        for (int transition = from; transition < to; transition++)
+          compiler.accept(transition);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new CompileTask(from, middle, compiler), new CompileTask(middle, to, compiler));
+    }
+  }
+
+}
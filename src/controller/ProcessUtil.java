@@ -8,6 +8,8 @@ import java.io.InputStreamReader;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class ProcessUtil {
 
@@ -21,6 +23,14 @@ public class ProcessUtil {
   }
 
   public static List<String> executeAndReturnOutput(String... args) {
+    return executeAndReturnOutput(UI::showError, args);
+  }
+
+  /**
+   * @param errorHandler receives the output of the process should it exit with an error
+   * @return the output of the process or null if it exited with an error
+   */
+  public static List<String> executeAndReturnOutput(Consumer<String> errorHandler, String... args) {
     ProcessBuilder ps = new ProcessBuilder(args);
     List<String> output = new ArrayList<>();
     try {
@@ -33,7 +43,7 @@ public class ProcessUtil {
         }
         pr.waitFor();
         if (pr.exitValue() > 0) {
-          UI.showError(String.join("\n", output));
+          errorHandler.accept(String.join("\n", output));
           return null;
         }
       }
@@ -44,6 +54,51 @@ public class ProcessUtil {
     return output;
   }
 
+  /**
+   * Passes each line of the process output to the given consumer as soon as it's available. Should the consumer
+   * reject a line, the process is destroyed.
+   * @param errorHandler receives the error output of the process, or the rejected line, should the process fail
+   * @return whether the process exited normally and all of its output was accepted
+   */
+  public static boolean executeAndStreamOutput(Predicate<String> lineConsumer, Consumer<String> errorHandler,
+                                               String... args) {
+    ProcessBuilder ps = new ProcessBuilder(args);
+    try {
+      Process pr = ps.start();
+      List<String> errorOutput = new ArrayList<>();
+      Thread errorReader = new Thread(() -> {
+        try (BufferedReader err = new BufferedReader(new InputStreamReader(pr.getErrorStream()))) {
+          String line;
+          while ((line = err.readLine()) != null) {
+            errorOutput.add(line);
+          }
+        } catch (IOException ignored) {
+        }
+      });
+      errorReader.start();
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(pr.getInputStream()))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (!lineConsumer.test(line)) {
+            pr.destroyForcibly();
+            errorHandler.accept("Unexpected output: " + line);
+            return false;
+          }
+        }
+        pr.waitFor();
+        errorReader.join();
+        if (pr.exitValue() > 0) {
+          errorHandler.accept(String.join("\n", errorOutput));
+          return false;
+        }
+      }
+    } catch (IOException | InterruptedException e) {
+      UI.showError(e.getMessage());
+      Controller.exit(new IllegalStateException("Process output parsing failed"));
+    }
+    return true;
+  }
+
   public static boolean isRunning(final String processName) {
     return ProcessHandle
         .allProcesses()
@@ -1,13 +1,19 @@
 package controller;
 
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Waits for repeats of the given input command until {@link #WAIT_AMOUNT_MS} has elapsed from last such input,
- * before proceeding with the remainder of the command series. Other commands will be rejected during this wait time.
+ * before proceeding with the remainder of the command series. The repeats of the command to repeat are performed
+ * right away, while the remainder is performed once the wait is over. What happens to other commands during this
+ * wait time depends on the {@link Policy}. The commands are {@link CommandRegistry} ids.
+ * <p>
+ * The wait is timed by a single shared scheduler thread: a repeat only pushes the deadline further, and the timer
+ * checks on expiry whether the deadline has been pushed and if so, reschedules itself for the rest of it.
  */
 public class RepeatInputHandler {
 
@@ -16,11 +22,40 @@ public class RepeatInputHandler {
   private static final long WAIT_AMOUNT_MS = 300L;
   private static final boolean PRINT_DEBUG = true;
 
-  private volatile String commandToRepeat;
-  private String commandAwaitingRepeats;
-  private Timer repeatInputTimer;
-  private Consumer<String> consumer;
-  private List<String> remainingCommands;
+  private static final int NONE = CommandRegistry.INVALID;
+
+  /**
+   * What to do with the commands other than the one awaiting repeats during the wait time.
+   */
+  enum Policy {
+    /** The commands are dropped */
+    REJECT,
+    /** The commands are performed once the wait time is over */
+    QUEUE;
+  }
+
+  enum Result {
+    UNHANDLED,
+    ACCEPTED,
+    REJECTED,
+    /** The command must wait until ready */
+    QUEUED;
+  }
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Repeat input timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private volatile Policy policy = Policy.REJECT;
+  private int commandToRepeat = NONE;
+  private int commandAwaitingRepeats = NONE;
+  private long deadline;
+  private CommandSender consumer;
+  private Supplier<CompletableFuture<Void>> remainder;
+  // Completed once the wait time is over and the remainder has been performed
+  private CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
 
   static RepeatInputHandler get() {
     return INSTANCE;
@@ -29,83 +64,84 @@ public class RepeatInputHandler {
   private RepeatInputHandler() {
   }
 
-  void waitUntilReady() {
-    int i = 0;
-    while (commandToRepeat != null) {
-      try {
-        Thread.sleep(WAIT_AMOUNT_MS / 4);
-      } catch (InterruptedException e) {
-        e.printStackTrace(System.err);
-      }
-      // Don't block forever in an unexpected case:
-      if (i++ > 10)
-        break;
-    }
+  void setPolicy(Policy policy) {
+    this.policy = policy;
   }
 
-  enum Result {
-    UNHANDLED,
-    ACCEPTED,
-    REJECTED;
+  /**
+   * @return a future completed once the wait time is over and the remainder has been performed, if waiting
+   */
+  synchronized CompletableFuture<Void> ready() {
+    return ready;
   }
 
-  synchronized Result processIfRepeat(String command) {
-    if (commandToRepeat != null) {
-      assert commandAwaitingRepeats != null;
-      assert repeatInputTimer != null;
+  /**
+   * @param count the number of times the command was given
+   */
+  synchronized Result processIfRepeat(int command, int count) {
+    if (commandToRepeat != NONE) {
+      assert commandAwaitingRepeats != NONE;
       assert consumer != null;
-      if (commandAwaitingRepeats.equals(command)) {
-        repeatInputTimer.cancel();
-        repeatInputTimer = new Timer();
-        repeatInputTimer.schedule(new TimerTask() {
-          @Override
-          public void run() {
-            processRemaining();
-          }
-        }, WAIT_AMOUNT_MS);
-
-        consumer.accept(commandToRepeat);
+      if (commandAwaitingRepeats == command) {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_AMOUNT_MS);
+        consumer.send(commandToRepeat, count - 1);
         return Result.ACCEPTED;
+      } else if (policy == Policy.QUEUE) {
+        if (PRINT_DEBUG)
+          System.out.println("Input queued: " + CommandRegistry.command(command));
+        return Result.QUEUED;
       } else {
         if (PRINT_DEBUG)
-          System.out.println("Input rejected: " + command);
+          System.out.println("Input rejected: " + CommandRegistry.command(command));
         return Result.REJECTED;
       }
     }
     return Result.UNHANDLED;
   }
 
-  synchronized void awaitRepeats(String commandAwaitingRepeats, String commandToRepeat, List<String> remainingCommands, Consumer<String> consumer) {
+  /**
+   * @param consumer performs the repeats of the command to repeat
+   * @param remainder performs the remainder of the command series, returning a future completed once performed
+   */
+  synchronized void awaitRepeats(int commandAwaitingRepeats, int commandToRepeat, CommandSender consumer,
+                                 Supplier<CompletableFuture<Void>> remainder) {
     this.commandAwaitingRepeats = commandAwaitingRepeats;
     this.commandToRepeat = commandToRepeat;
     this.consumer = consumer;
-    this.remainingCommands = remainingCommands;
+    this.remainder = remainder;
+    this.ready = new CompletableFuture<>();
 
-    repeatInputTimer = new Timer();
-    repeatInputTimer.schedule(new TimerTask() {
-      @Override
-      public void run() {
-        processRemaining();
-      }
-    }, WAIT_AMOUNT_MS);
+    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_AMOUNT_MS);
+    scheduler.schedule(this::checkDeadline, WAIT_AMOUNT_MS, TimeUnit.MILLISECONDS);
 
     if (PRINT_DEBUG)
       System.out.println("*Waiting for repeated inputs*");
   }
 
-  private synchronized void processRemaining() {
+  private synchronized void checkDeadline() {
+    long remaining = deadline - System.nanoTime();
+    if (remaining > 0)
+      scheduler.schedule(this::checkDeadline, remaining, TimeUnit.NANOSECONDS);
+    else
+      processRemaining();
+  }
+
+  private void processRemaining() {
     if (PRINT_DEBUG)
       System.out.println("*Stopped waiting for repeated inputs*");
 
-    for (String command : remainingCommands) {
-      consumer.accept(command);
-    }
-
-    remainingCommands = null;
+    Supplier<CompletableFuture<Void>> remainder = this.remainder;
+    CompletableFuture<Void> ready = this.ready;
+    this.remainder = null;
     consumer = null;
-    commandToRepeat = null;
-    commandAwaitingRepeats = null;
-    repeatInputTimer.cancel();
+    commandToRepeat = NONE;
+    commandAwaitingRepeats = NONE;
+    try {
+      remainder.get().whenComplete((result, e) -> ready.complete(null));
+    } catch (RuntimeException e) {
+      ready.complete(null);
+      throw e;
+    }
   }
 
 }
@@ -3,11 +3,26 @@ package controller;
 import controller.ui.UI;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static controller.Controller.exit;
 
@@ -15,19 +30,71 @@ import static controller.Controller.exit;
  * Uses a file to store inputs and on/off statuses. This implementation fails fast at unexpected situations.
  * File format: "(device 1 input) ... (device n input) (device 1 status 0|1) ... (device n status 0|1)"
  * Where devices are listed in the order specified in {@link #DEVICE_ORDER_IN_SAVE_FILE}.
+ * <p>
+ * The file is read once, after which the values are served from memory. Changes are written to the file
+ * according to the {@link WritePolicy}.
+ * <p>
+ * With {@link WritePolicy#JOURNAL} the changes are appended to a {@link SaveFileJournal} next to the file instead.
+ * The journal is replayed on top of the file at startup and compacted into the file after the write delay,
+ * along with any further changes made during the delay, so that the file is kept up to date for others reading
+ * it, e.g. the solver. Should compacting fall behind, it's also done every {@link #COMPACTION_THRESHOLD} records.
+ * <p>
+ * Optionally the file is watched for changes made by others, e.g. the solver, in which case the changed values are
+ * reloaded once no further changes have been made for {@link #WATCH_DEBOUNCE_MS} and the listeners notified.
  */
 public class SaveFile implements InputStore {
 
+  private static final boolean PRINT_DEBUG = true;
   private static final Device[] DEVICE_ORDER_IN_SAVE_FILE = {Device.BACKLED, Device.FRONTLED, Device.POTLED};
 
+  enum WritePolicy {
+    /** Each change is written to the file right away */
+    SYNC,
+    /** Changes are written to the file after a delay, along with any further changes made during the delay */
+    WRITE_BEHIND,
+    /** Like {@link #WRITE_BEHIND}, but written to a temporary file replacing the file, so a crash can't corrupt it */
+    ATOMIC,
+    /** Each change is appended to a journal, compacted into the file after a delay like with {@link #ATOMIC} */
+    JOURNAL
+  }
+
+  enum FsyncPolicy {
+    /** Each write is forced to the storage device before replacing the file or, with a journal, before returning */
+    ALWAYS,
+    /** Writes are forced to the storage device every {@link #FSYNC_INTERVAL_MS} */
+    PERIODIC,
+    /** Forcing writes is left to the operating system */
+    NEVER
+  }
+
+  private static final long FSYNC_INTERVAL_MS = 30_000L;
+  private static final int COMPACTION_THRESHOLD = 4096;
+  private static final long WATCH_DEBOUNCE_MS = 200L;
+
   private final Path savefilePath;
   private final Map<Device, Integer> inputIndexInSaveFile;
   private final Map<Device, Integer> statusIndexInSaveFile;
+  private final WritePolicy writePolicy;
+  private final FsyncPolicy fsyncPolicy;
+  private final long writeDelayMs;
+  private final String[] values;
+  // The values in the file as last read or written by this, to tell the changes made by others apart
+  private String[] fileValues;
+  private final ScheduledExecutorService writer;
+  private final SaveFileJournal journal;
+  private final List<StateHistory.ChangeListener> listeners = new CopyOnWriteArrayList<>();
 
-  SaveFile(Path savefilePath) {
+  private boolean dirty;
+  private boolean unsynced;
+  private volatile boolean shuttingDown;
+
+  SaveFile(Path savefilePath, WritePolicy writePolicy, FsyncPolicy fsyncPolicy, long writeDelayMs, boolean watch) {
     this.savefilePath = savefilePath;
     this.inputIndexInSaveFile = new HashMap<>();
     this.statusIndexInSaveFile = new HashMap<>();
+    this.writePolicy = writePolicy;
+    this.fsyncPolicy = fsyncPolicy;
+    this.writeDelayMs = writeDelayMs;
     if (Device.values().length != DEVICE_ORDER_IN_SAVE_FILE.length) {
       exit(new IllegalStateException("Unsupported devices registered!"));
     }
@@ -37,6 +104,29 @@ public class SaveFile implements InputStore {
       statusIndexInSaveFile.put(device, i + DEVICE_ORDER_IN_SAVE_FILE.length);
       i++;
     }
+    this.values = readValues();
+    this.fileValues = values.clone();
+    this.journal = writePolicy == WritePolicy.JOURNAL ? openJournal() : null;
+
+    if (writePolicy != WritePolicy.SYNC) {
+      writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Save file writer");
+        thread.setDaemon(true);
+        return thread;
+      });
+      if (writePolicy != WritePolicy.WRITE_BEHIND && fsyncPolicy == FsyncPolicy.PERIODIC)
+        writer.scheduleWithFixedDelay(this::sync, FSYNC_INTERVAL_MS, FSYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        shuttingDown = true;
+        flush();
+        sync();
+      }));
+    } else {
+      writer = null;
+    }
+
+    if (watch)
+      startWatching();
   }
 
   @Override
@@ -55,27 +145,249 @@ public class SaveFile implements InputStore {
   }
 
   @Override
-  public String loadInput(Device device) {
-    return readValues()[inputIndexInSaveFile.get(device)];
+  public synchronized String loadInput(Device device) {
+    return values[inputIndexInSaveFile.get(device)];
   }
 
   @Override
-  public boolean loadStatus(Device device) {
-    return "1".equals(readValues()[statusIndexInSaveFile.get(device)]);
+  public synchronized boolean loadStatus(Device device) {
+    return "1".equals(values[statusIndexInSaveFile.get(device)]);
+  }
+
+  @Override
+  public synchronized StateVector snapshot() {
+    return InputStore.super.snapshot();
+  }
+
+  /**
+   * Applies all of the changes before writing, so that the file never contains only a part of them.
+   */
+  @Override
+  public synchronized void apply(StateUpdate update) {
+    Map<Integer, String> change = new LinkedHashMap<>();
+    for (Map.Entry<Device, String> input : update.inputs().entrySet())
+      if (setValue(inputIndexInSaveFile.get(input.getKey()), input.getValue()))
+        change.put(inputIndexInSaveFile.get(input.getKey()), input.getValue());
+    for (Map.Entry<Device, Boolean> status : update.statuses().entrySet())
+      if (setValue(statusIndexInSaveFile.get(status.getKey()), status.getValue() ? "1" : "0"))
+        change.put(statusIndexInSaveFile.get(status.getKey()), status.getValue() ? "1" : "0");
+    if (!change.isEmpty())
+      changed(change);
+  }
+
+  @Override
+  public void addChangeListener(StateHistory.ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Writes possible pending changes to the file.
+   */
+  synchronized void flush() {
+    if (journal != null) {
+      compact();
+      return;
+    }
+    if (!dirty)
+      return;
+    dirty = false;
+    writeValues(values);
+  }
+
+  private synchronized void writeValue(Integer index, String value) {
+    if (setValue(index, value))
+      changed(Map.of(index, value));
+  }
+
+  private boolean setValue(Integer index, String value) {
+    if (value.equals(values[index]))
+      return false;
+    values[index] = value;
+    return true;
+  }
+
+  /**
+   * @param change the changed values by their indices
+   */
+  private void changed(Map<Integer, String> change) {
+    if (journal != null) {
+      appendToJournal(change);
+      if (!dirty)
+        writer.schedule(this::flush, writeDelayMs, TimeUnit.MILLISECONDS);
+      dirty = true;
+      return;
+    }
+    if (writePolicy == WritePolicy.SYNC) {
+      writeValues(values);
+      return;
+    }
+    if (!dirty)
+      writer.schedule(this::flush, writeDelayMs, TimeUnit.MILLISECONDS);
+    dirty = true;
+  }
+
+  private void appendToJournal(Map<Integer, String> change) {
+    int previousRecords = journal.records();
+    try {
+      journal.append(change);
+      if (fsyncPolicy == FsyncPolicy.ALWAYS)
+        journal.force();
+      else if (fsyncPolicy == FsyncPolicy.PERIODIC)
+        unsynced = true;
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("Save file journal write failed"));
+    }
+    if (previousRecords < COMPACTION_THRESHOLD && journal.records() >= COMPACTION_THRESHOLD)
+      writer.execute(this::compact);
   }
 
-  private void writeValue(Integer index, String value) {
-    String[] originalValues = readValues();
-    originalValues[index] = value;
-    writeValues(originalValues);
+  /**
+   * Writes the values to the file and discards the journal records they contain.
+   */
+  private synchronized void compact() {
+    dirty = false;
+    if (journal.records() == 0)
+      return;
+    try {
+      writeValuesAtomically(values);
+      if (fsyncPolicy == FsyncPolicy.PERIODIC)
+        sync();
+      journal.clear();
+    } catch (IOException e) {
+      writeFailed(e, "Save file journal compaction failed");
+    }
   }
 
   private void writeValues(String[] originalValues) {
     try {
-      Files.writeString(savefilePath, String.join(" ", originalValues));
+      if (writePolicy == WritePolicy.ATOMIC)
+        writeValuesAtomically(originalValues);
+      else {
+        Files.writeString(savefilePath, String.join(" ", originalValues));
+        fileValues = originalValues.clone();
+      }
+    } catch (IOException e) {
+      writeFailed(e, "Save file write failed");
+    }
+  }
+
+  private void writeFailed(IOException e, String failure) {
+    if (shuttingDown) {
+      // Exiting from within a shutdown hook would block forever
+      System.err.println(failure + ": " + e.getMessage());
+      return;
+    }
+    UI.showError(e.getMessage());
+    exit(new IllegalStateException(failure));
+  }
+
+  private void writeValuesAtomically(String[] originalValues) throws IOException {
+    Path temp = savefilePath.resolveSibling(savefilePath.getFileName() + ".tmp");
+    ByteBuffer contents = ByteBuffer.wrap(String.join(" ", originalValues).getBytes(StandardCharsets.US_ASCII));
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (contents.hasRemaining())
+        channel.write(contents);
+      if (fsyncPolicy == FsyncPolicy.ALWAYS)
+        channel.force(true);
+    }
+    Files.move(temp, savefilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    fileValues = originalValues.clone();
+    unsynced = fsyncPolicy == FsyncPolicy.PERIODIC;
+  }
+
+  private synchronized void sync() {
+    if (!unsynced)
+      return;
+    unsynced = false;
+    try (FileChannel channel = FileChannel.open(savefilePath, StandardOpenOption.WRITE)) {
+      channel.force(true);
+      if (journal != null)
+        journal.force();
+    } catch (IOException e) {
+      e.printStackTrace(System.err);
+    }
+  }
+
+  private void startWatching() {
+    WatchService watchService;
+    try {
+      watchService = savefilePath.getFileSystem().newWatchService();
+      savefilePath.toAbsolutePath().getParent().register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (IOException e) {
+      System.err.println("Couldn't watch the save file for changes: " + e.getMessage());
+      return;
+    }
+    Thread watcher = new Thread(() -> watch(watchService), "Save file watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void watch(WatchService watchService) {
+    Path fileName = savefilePath.getFileName();
+    boolean changed = false;
+    try {
+      while (true) {
+        // Once a change is seen, wait until the changes stop so that a burst of writes is reloaded only once
+        WatchKey key = changed ? watchService.poll(WATCH_DEBOUNCE_MS, TimeUnit.MILLISECONDS) : watchService.take();
+        if (key == null) {
+          changed = false;
+          reload();
+          continue;
+        }
+        for (WatchEvent<?> event : key.pollEvents())
+          changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+        key.reset();
+      }
+    } catch (InterruptedException | ClosedWatchServiceException ignored) {
+    }
+  }
+
+  /**
+   * Takes the values changed by others since the file was last read or written by this, leaving the rest, e.g. the
+   * changes not yet written or only journaled, as they are. Read under the lock so that the file can't be written by
+   * this in the meantime.
+   */
+  private void reload() {
+    synchronized (this) {
+      String contents;
+      try {
+        contents = Files.readString(savefilePath, StandardCharsets.US_ASCII);
+      } catch (IOException e) {
+        return; // E.g. in the middle of being replaced
+      }
+      String[] reloadedValues = contents.split(" ", values.length);
+      if (reloadedValues.length != values.length || reloadedValues[values.length - 1].isEmpty())
+        return; // Possibly partially written, the rest of the write will be seen as another change
+
+      Map<Integer, String> change = new LinkedHashMap<>();
+      for (int i = 0; i < values.length; i++)
+        if (!reloadedValues[i].equals(fileValues[i]) && setValue(i, reloadedValues[i]))
+          change.put(i, reloadedValues[i]);
+      fileValues = reloadedValues;
+      if (change.isEmpty())
+        return; // E.g. written by this
+      // Journaled after the earlier records, so that replaying them doesn't revert the changes
+      if (journal != null)
+        appendToJournal(change);
+    }
+    if (PRINT_DEBUG)
+      System.out.println("*Save file changed externally*");
+    listeners.forEach(StateHistory.ChangeListener::stateChanged);
+  }
+
+  private SaveFileJournal openJournal() {
+    try {
+      Path journalPath = savefilePath.resolveSibling(savefilePath.getFileName() + ".journal");
+      SaveFileJournal journal = new SaveFileJournal(journalPath);
+      journal.replay(values);
+      return journal;
     } catch (IOException e) {
       UI.showError(e.getMessage());
-      exit(new IllegalStateException("Save file write failed"));
+      exit(new IllegalStateException("Save file journal read failed"));
+      return null;
     }
   }
 
@@ -0,0 +1,107 @@
+package controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the changes to the values of a {@link SaveFile} as fixed-size records appended to a file.
+ * Record format: "(timestamp in ms, 8 bytes) (value index, 1 byte) (flags, 1 byte) (value length, 1 byte)
+ * (ASCII value padded to {@link #MAX_VALUE_LENGTH} bytes)"
+ * <p>
+ * The values changed at once are written as consecutive records, each but the last flagged with {@link #MORE}, so
+ * that a change cut short by a crash is left out when the journal is replayed.
+ */
+class SaveFileJournal {
+
+  private static final int RECORD_SIZE = 32;
+  private static final int MAX_VALUE_LENGTH = RECORD_SIZE - Long.BYTES - 3;
+  private static final byte MORE = 1;
+
+  private final FileChannel channel;
+  private int records;
+
+  SaveFileJournal(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Applies the recorded changes to the given values and discards a possible incomplete change at the end.
+   */
+  void replay(String[] values) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+    channel.position(0);
+    while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+    buffer.flip();
+
+    Map<Integer, String> change = new HashMap<>();
+    byte[] value = new byte[MAX_VALUE_LENGTH];
+    int completeRecords = 0;
+    for (int i = 0; buffer.remaining() >= RECORD_SIZE; i++) {
+      buffer.getLong();
+      int index = buffer.get() & 0xFF;
+      byte flags = buffer.get();
+      int length = buffer.get() & 0xFF;
+      buffer.get(value);
+      if (index >= values.length || length > MAX_VALUE_LENGTH)
+        break;
+      change.put(index, new String(value, 0, length, StandardCharsets.US_ASCII));
+      if ((flags & MORE) == 0) {
+        change.forEach((changedIndex, changedValue) -> values[changedIndex] = changedValue);
+        change.clear();
+        completeRecords = i + 1;
+      }
+    }
+
+    records = completeRecords;
+    channel.truncate((long)records * RECORD_SIZE);
+    channel.position((long)records * RECORD_SIZE);
+  }
+
+  /**
+   * @param change the changed values by their indices
+   */
+  void append(Map<Integer, String> change) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(change.size() * RECORD_SIZE);
+    long timestamp = System.currentTimeMillis();
+    int remaining = change.size();
+    for (Map.Entry<Integer, String> entry : change.entrySet()) {
+      byte[] value = entry.getValue().getBytes(StandardCharsets.US_ASCII);
+      if (value.length > MAX_VALUE_LENGTH)
+        throw new IOException("Value too long for the save file journal: " + entry.getValue());
+      buffer.putLong(timestamp);
+      buffer.put(entry.getKey().byteValue());
+      buffer.put(--remaining > 0 ? MORE : 0);
+      buffer.put((byte)value.length);
+      buffer.put(value);
+      buffer.position(buffer.position() + MAX_VALUE_LENGTH - value.length);
+    }
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    records += change.size();
+  }
+
+  int records() {
+    return records;
+  }
+
+  void force() throws IOException {
+    channel.force(false);
+  }
+
+  /**
+   * Discards the records once they've been compacted into the save file.
+   */
+  void clear() throws IOException {
+    channel.truncate(0);
+    channel.position(0);
+    records = 0;
+  }
+
+}
@@ -0,0 +1,271 @@
+package controller;
+
+import controller.ui.UI;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static controller.Controller.exit;
+
+/**
+ * Stores the inputs and on/off statuses in a small memory-mapped file shared by all the running instances.
+ * Region format: "(magic, 4 bytes) (version, 4 bytes) (sequence number, 8 bytes) (device count, 4 bytes)
+ * (padding, 12 bytes)" followed by a slot per device in {@link Device} order: "(status 0|1, 1 byte)
+ * (input length, 1 byte) (ASCII input padded to {@link #MAX_INPUT_LENGTH} bytes)"
+ * <p>
+ * The sequence number works as a seqlock: it's odd while a write is in progress, so readers retry until they've
+ * read the region in between the same even sequence numbers, without taking any locks. Writers take a lock on the
+ * file. Should a reader not succeed in {@link #MAX_READ_ATTEMPTS}, it takes the lock too, repairing a write left
+ * unfinished by a writer that died. A change made by another instance is noticed by polling the sequence number,
+ * after which the listeners are notified. Each write is also applied to the backing store, so that the state is
+ * preserved in its format, and changes made to the backing store by others are shared.
+ */
+class SharedStateStore implements InputStore {
+
+  private static final int MAGIC = 0x564c5353; // VLSS
+  private static final int VERSION = 1;
+  private static final int SEQUENCE_OFFSET = 8;
+  private static final int DEVICE_COUNT_OFFSET = 16;
+  private static final int HEADER_SIZE = 32;
+  private static final int SLOT_SIZE = 32;
+  private static final int MAX_INPUT_LENGTH = SLOT_SIZE - 2;
+  private static final long POLL_INTERVAL_MS = 100L;
+  private static final int MAX_READ_ATTEMPTS = 1_000;
+
+  private static final VarHandle SEQUENCE = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+  private final FileChannel channel;
+  private final MappedByteBuffer region;
+  private final InputStore backingStore;
+  private final List<StateHistory.ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+  private long lastSeenSequence;
+
+  SharedStateStore(Path path, InputStore backingStore) {
+    this.backingStore = backingStore;
+    int size = HEADER_SIZE + Device.values().length * SLOT_SIZE;
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      FileLock lock = channel.lock();
+      try {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (region.getInt(0) != MAGIC || region.getInt(4) != VERSION
+            || region.getInt(DEVICE_COUNT_OFFSET) != Device.values().length) {
+          // No instance is running yet, so the backing store is up to date
+          write(backingStore.snapshot());
+          region.putInt(DEVICE_COUNT_OFFSET, Device.values().length);
+          region.putInt(4, VERSION);
+          region.putInt(0, MAGIC);
+          region.force();
+        } else {
+          backingStore.apply(fullUpdate(lockedSnapshot()));
+        }
+        lastSeenSequence = (long)SEQUENCE.getVolatile(region, SEQUENCE_OFFSET);
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("Shared state setup failed"));
+      throw new IllegalStateException(e);
+    }
+
+    ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Shared state poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+    poller.scheduleWithFixedDelay(this::checkForChanges, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    backingStore.addChangeListener(this::backingStoreChanged);
+  }
+
+  @Override
+  public void saveInput(Device device, String value) {
+    apply(new StateUpdate.Builder().setInput(device, value).create());
+  }
+
+  @Override
+  public void saveOnStatus(Device device) {
+    apply(new StateUpdate.Builder().setStatus(device, true).create());
+  }
+
+  @Override
+  public void saveOffStatus(Device device) {
+    apply(new StateUpdate.Builder().setStatus(device, false).create());
+  }
+
+  @Override
+  public String loadInput(Device device) {
+    return snapshot().input(device);
+  }
+
+  @Override
+  public boolean loadStatus(Device device) {
+    return snapshot().status(device);
+  }
+
+  @Override
+  public StateVector snapshot() {
+    for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+      StateVector state = read();
+      if (state != null)
+        return state;
+      Thread.onSpinWait();
+    }
+    // Possibly a writer died in the middle of a write, which is known only once its lock has been released.
+    // Synchronized so that the lock isn't taken twice by this, which isn't allowed.
+    synchronized (this) {
+      try {
+        FileLock lock = channel.lock();
+        try {
+          return lockedSnapshot();
+        } finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        UI.showError(e.getMessage());
+        exit(new IllegalStateException("Shared state read failed"));
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Must be called holding the file lock, so that there's no write in progress. A write left unfinished by a writer
+   * that died is repaired.
+   */
+  private StateVector lockedSnapshot() {
+    long sequence = (long)SEQUENCE.getVolatile(region, SEQUENCE_OFFSET);
+    if ((sequence & 1) != 0) {
+      System.err.println("Repairing the shared state left in the middle of a write");
+      SEQUENCE.setRelease(region, SEQUENCE_OFFSET, sequence + 1);
+    }
+    StateVector state = read();
+    if (state == null) {
+      // The slots were left torn, so take the state from the backing store instead
+      state = backingStore.snapshot();
+      write(state);
+    }
+    return state;
+  }
+
+  /**
+   * @return the state, or null if it was being written in the meantime
+   */
+  private StateVector read() {
+    String[] inputs = new String[Device.values().length];
+    boolean[] statuses = new boolean[Device.values().length];
+    long sequence = (long)SEQUENCE.getAcquire(region, SEQUENCE_OFFSET);
+    if ((sequence & 1) != 0)
+      return null;
+    for (Device device : Device.values()) {
+      int slot = HEADER_SIZE + device.ordinal() * SLOT_SIZE;
+      int length = region.get(slot + 1);
+      if (length < 0 || length > MAX_INPUT_LENGTH)
+        return null;
+      byte[] input = new byte[length];
+      for (int i = 0; i < length; i++)
+        input[i] = region.get(slot + 2 + i);
+      statuses[device.ordinal()] = region.get(slot) == 1;
+      inputs[device.ordinal()] = new String(input, StandardCharsets.US_ASCII);
+    }
+    VarHandle.loadLoadFence();
+    if ((long)SEQUENCE.getAcquire(region, SEQUENCE_OFFSET) != sequence)
+      return null;
+    return new StateVector(inputs, statuses);
+  }
+
+  @Override
+  public synchronized void apply(StateUpdate update) {
+    try {
+      FileLock lock = channel.lock();
+      try {
+        StateVector previous = lockedSnapshot();
+        StateVector next = previous.with(update);
+        if (next.equals(previous))
+          return;
+        write(next);
+        lastSeenSequence = (long)SEQUENCE.getVolatile(region, SEQUENCE_OFFSET);
+        backingStore.apply(fullUpdate(next));
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("Shared state write failed"));
+    }
+  }
+
+  @Override
+  public void addChangeListener(StateHistory.ChangeListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Must be called holding the file lock.
+   */
+  private void write(StateVector state) {
+    byte[][] inputs = new byte[Device.values().length][];
+    for (Device device : Device.values()) {
+      inputs[device.ordinal()] = state.input(device).getBytes(StandardCharsets.US_ASCII);
+      if (inputs[device.ordinal()].length > MAX_INPUT_LENGTH) {
+        UI.showError("Input too long for the shared state: " + state.input(device));
+        exit(new IllegalStateException("Unsupported input"));
+        return;
+      }
+    }
+
+    long sequence = (long)SEQUENCE.getVolatile(region, SEQUENCE_OFFSET);
+    SEQUENCE.setVolatile(region, SEQUENCE_OFFSET, sequence + 1);
+    for (Device device : Device.values()) {
+      byte[] input = inputs[device.ordinal()];
+      int slot = HEADER_SIZE + device.ordinal() * SLOT_SIZE;
+      region.put(slot, (byte)(state.status(device) ? 1 : 0));
+      region.put(slot + 1, (byte)input.length);
+      for (int i = 0; i < input.length; i++)
+        region.put(slot + 2 + i, input[i]);
+    }
+    SEQUENCE.setRelease(region, SEQUENCE_OFFSET, sequence + 2);
+  }
+
+  private void checkForChanges() {
+    long sequence = (long)SEQUENCE.getAcquire(region, SEQUENCE_OFFSET);
+    synchronized (this) {
+      if (sequence == lastSeenSequence || (sequence & 1) != 0)
+        return;
+      lastSeenSequence = sequence;
+    }
+    listeners.forEach(StateHistory.ChangeListener::stateChanged);
+  }
+
+  /**
+   * Shares a change made to the backing store by something else than the running instances.
+   */
+  private void backingStoreChanged() {
+    apply(fullUpdate(backingStore.snapshot()));
+    listeners.forEach(StateHistory.ChangeListener::stateChanged);
+  }
+
+  private static StateUpdate fullUpdate(StateVector state) {
+    StateUpdate.Builder update = new StateUpdate.Builder();
+    for (Device device : Device.values()) {
+      update.setInput(device, state.input(device));
+      update.setStatus(device, state.status(device));
+    }
+    return update.create();
+  }
+
+}
@@ -0,0 +1,14 @@
+package controller;
+
+/**
+ * Thrown when the solver couldn't solve for a command series, the message being the solver output.
+ */
+class SolverFailedException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  SolverFailedException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,228 @@
+package controller;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A long-lived solver process that is fed with requests over a line-delimited stdin/stdout protocol:
+ * <pre>
+ * Request:      (current states) TAB (desired state)
+ * Response:     (command 1) ... (command n) *End*
+ * Failure:      *Error* (message line 1) ... *Error* (message line n) *End*
+ * Health check: *Ping*, answered with *Pong* *End*
+ * </pre>
+ * Where each element is on a line of its own. The process is launched with the given command and the option
+ * {@link #WORKER_OPTION}. A crashed or unresponsive process is respawned on the next request, unless requests
+ * have failed {@link #MAX_CONSECUTIVE_FAILURES} times in a row, in which case the worker is considered unavailable
+ * for a backoff time, starting from {@link #INITIAL_RETRY_BACKOFF_MS} and doubling on each failed retry.
+ */
+class SolverWorker {
+
+  private static final String WORKER_OPTION = "--worker";
+  private static final String PING = "*Ping*";
+  private static final String PONG = "*Pong*";
+  private static final String END = "*End*";
+  private static final String ERROR_PREFIX = "*Error*";
+  private static final long RESPONSE_TIMEOUT_MS = 10_000L;
+  private static final long HEALTH_CHECK_INTERVAL_MS = 30_000L;
+  private static final int MAX_CONSECUTIVE_FAILURES = 3;
+  private static final long INITIAL_RETRY_BACKOFF_MS = 60_000L;
+  private static final long MAX_RETRY_BACKOFF_MS = 3_600_000L;
+  private static final boolean PRINT_DEBUG = true;
+
+  private final String[] command;
+  private final ScheduledExecutorService healthChecker;
+  private final Thread shutdownHook = new Thread(this::stop);
+
+  private Process process;
+  private BufferedWriter requests;
+  // The lines output by the process, followed by an empty value once the output ends
+  private BlockingQueue<Optional<String>> responses;
+  private int consecutiveFailures;
+  private long retryBackoffMs = INITIAL_RETRY_BACKOFF_MS;
+  private long retryAt;
+
+  SolverWorker(String... command) {
+    this.command = new String[command.length + 1];
+    System.arraycopy(command, 0, this.command, 0, command.length);
+    this.command[command.length] = WORKER_OPTION;
+
+    healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "Solver worker health check");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // The first check spawns the process beforehand so that the first input doesn't pay for the startup
+    healthChecker.scheduleWithFixedDelay(this::checkHealth, 0L, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  synchronized boolean isAvailable() {
+    return consecutiveFailures < MAX_CONSECUTIVE_FAILURES || System.nanoTime() - retryAt >= 0;
+  }
+
+  /**
+   * @return the solver output, one command per line
+   * @throws SolverFailedException if the solver responded with an error
+   * @throws IOException if the worker is unavailable or didn't respond properly
+   */
+  List<String> solve(String currentStates, String desiredState) throws SolverFailedException, IOException {
+    List<String> output = new ArrayList<>();
+    solve(currentStates, desiredState, output::add);
+    return output;
+  }
+
+  /**
+   * Passes each command to the given consumer as soon as the solver outputs it. Should the consumer reject a
+   * command, the rest of the output is ignored.
+   * @throws SolverFailedException if the solver responded with an error or a command was rejected
+   * @throws IOException if the worker is unavailable or didn't respond properly
+   */
+  synchronized void solve(String currentStates, String desiredState, Predicate<String> commandConsumer)
+      throws SolverFailedException, IOException {
+    List<String> errors = new ArrayList<>();
+    List<String> rejected = new ArrayList<>();
+    request(currentStates + "\t" + desiredState, line -> {
+      if (line.startsWith(ERROR_PREFIX))
+        errors.add(line.substring(ERROR_PREFIX.length()).trim());
+      else if (errors.isEmpty() && rejected.isEmpty() && !commandConsumer.test(line))
+        rejected.add(line);
+    });
+    if (!errors.isEmpty())
+      throw new SolverFailedException(String.join("\n", errors));
+    if (!rejected.isEmpty())
+      throw new SolverFailedException("Unexpected output: " + rejected.get(0));
+  }
+
+  private synchronized void checkHealth() {
+    if (!isAvailable())
+      return;
+    try {
+      List<String> response = new ArrayList<>();
+      request(PING, response::add);
+      if (!response.equals(List.of(PONG)))
+        throw new IOException("Unexpected response to health check: " + response);
+    } catch (IOException e) {
+      if (PRINT_DEBUG)
+        System.err.println("Solver worker health check failed: " + e.getMessage());
+      destroy();
+    }
+  }
+
+  private void request(String request, Consumer<String> responseConsumer) throws IOException {
+    try {
+      ensureRunning();
+      requests.write(request);
+      requests.newLine();
+      requests.flush();
+      readResponse(responseConsumer);
+      consecutiveFailures = 0;
+      retryBackoffMs = INITIAL_RETRY_BACKOFF_MS;
+    } catch (IOException e) {
+      failed();
+      destroy();
+      throw e;
+    }
+  }
+
+  private void failed() {
+    consecutiveFailures++;
+    if (consecutiveFailures < MAX_CONSECUTIVE_FAILURES)
+      return;
+    // The health check retries once the backoff time has passed
+    retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryBackoffMs);
+    if (PRINT_DEBUG)
+      System.err.println("Solver worker unavailable, retrying in " + retryBackoffMs + " ms");
+    retryBackoffMs = Math.min(retryBackoffMs * 2, MAX_RETRY_BACKOFF_MS);
+  }
+
+  private void readResponse(Consumer<String> responseConsumer) throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT_MS);
+    while (true) {
+      Optional<String> line;
+      try {
+        line = responses.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the solver worker");
+      }
+      if (line == null)
+        throw new IOException("Solver worker timed out");
+      if (line.isEmpty())
+        throw new IOException("Solver worker exited unexpectedly");
+      if (line.get().equals(END))
+        return;
+      responseConsumer.accept(line.get());
+    }
+  }
+
+  private void ensureRunning() throws IOException {
+    if (process != null && process.isAlive())
+      return;
+    destroy();
+    if (!isAvailable())
+      throw new IOException("Solver worker unavailable");
+    ProcessBuilder pb = new ProcessBuilder(command);
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    process = pb.start();
+    requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+    responses = new LinkedBlockingQueue<>();
+    startReading(process, responses);
+    if (PRINT_DEBUG)
+      System.out.println("*Solver worker started*");
+  }
+
+  private static void startReading(Process process, BlockingQueue<Optional<String>> responses) {
+    Thread reader = new Thread(() -> {
+      try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+        String line;
+        while ((line = out.readLine()) != null)
+          responses.add(Optional.of(line));
+      } catch (IOException ignored) {
+      } finally {
+        responses.add(Optional.empty());
+      }
+    }, "Solver worker output");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void destroy() {
+    if (process == null)
+      return;
+    if (process.isAlive())
+      process.destroyForcibly();
+    process = null;
+    requests = null;
+    responses = null;
+  }
+
+  /**
+   * Stops the process before the exit, e.g. once done with a worker of its own.
+   */
+  void close() {
+    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+    stop();
+  }
+
+  private void stop() {
+    healthChecker.shutdownNow();
+    Process p = process;
+    if (p != null)
+      p.destroy();
+  }
+
+}
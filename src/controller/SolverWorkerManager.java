@@ -0,0 +1,64 @@
+package controller;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A {@link CommandOverlapManager} that keeps the solver running as a {@link SolverWorker} in between inputs,
+ * rather than paying for the solver startup on each input. Should the worker be unavailable, the command series
+ * is solved for by spawning the solver as usual, unless some of the streamed output has already been consumed.
+ */
+class SolverWorkerManager extends CommandOverlapManager {
+
+  private static final boolean PRINT_DEBUG = true;
+
+  private final SolverWorker worker;
+
+  SolverWorkerManager(String solverPath, CommandSender commandSender, InputStore inputStore,
+                      PlanCache planCache, PlanTable planTable, boolean streamSolverOutput,
+                      TransmitRateLimiter rateLimiter) {
+    super(solverPath, commandSender, inputStore, planCache, planTable, streamSolverOutput, rateLimiter);
+    this.worker = new SolverWorker(solverCommand());
+  }
+
+  @Override
+  void close() {
+    worker.close();
+  }
+
+  @Override
+  List<String> solve(String currentStates, String desiredState) throws SolverFailedException {
+    if (worker.isAvailable()) {
+      try {
+        return worker.solve(currentStates, desiredState);
+      } catch (IOException e) {
+        if (PRINT_DEBUG)
+          System.err.println("Solver worker failed, spawning the solver instead: " + e.getMessage());
+      }
+    }
+    return super.solve(currentStates, desiredState);
+  }
+
+  @Override
+  void solve(String currentStates, String desiredState, Predicate<String> commandConsumer)
+      throws SolverFailedException {
+    if (worker.isAvailable()) {
+      boolean[] consumed = {false};
+      try {
+        worker.solve(currentStates, desiredState, command -> {
+          consumed[0] = true;
+          return commandConsumer.test(command);
+        });
+        return;
+      } catch (IOException e) {
+        if (consumed[0])
+          throw new SolverFailedException("Solver worker failed: " + e.getMessage());
+        if (PRINT_DEBUG)
+          System.err.println("Solver worker failed, spawning the solver instead: " + e.getMessage());
+      }
+    }
+    super.solve(currentStates, desiredState, commandConsumer);
+  }
+
+}
@@ -2,52 +2,250 @@ package controller;
 
 import java.util.*;
 
+/**
+ * Keeps the given number of latest states in a ring buffer, the oldest of which are dropped once it's full.
+ * Equal states are stored as a single instance.
+ * <p>
+ * Given a {@link StateHistoryFile}, all the states are also saved to it and the ring buffer serves as a window
+ * to the states around the head, the rest of which are loaded from the file when the head is moved to them.
+ * <p>
+ * A state saved within the coalescing window of the previous save replaces it instead of becoming a new entry,
+ * so that browsing through the inputs is undone at once. The replaced states are kept as the intermediate states
+ * of the entry, up to {@link #MAX_INTERMEDIATE_STATES}, while the entry is in the ring buffer.
+ */
 public class StateHistory {
 
-  private List<State> history = new ArrayList<>();
+  private static final int MAX_INTERMEDIATE_STATES = 32;
+
+  private final Entry[] window;
+  private final Map<Set<DeviceState>, State> internedStates = new HashMap<>();
+  private final StateHistoryFile file;
+  private final long coalesceWindowNanos;
+  private int start;
+  // The position of the first entry in the window
+  private int base;
+  private int size;
   private int head = -1;
+  // The time of the previous save, unless the head has been moved after it
+  private long lastSaveNanos;
+  private boolean coalescible;
+
+  public StateHistory(int capacity) {
+    this(capacity, null, 0L);
+  }
 
-  public void save(Collection<DeviceState> deviceStates) {
-    State newState = new State(deviceStates);
-    if (!changed(newState))
-      return;
-    head++;
-    history = history.subList(0, head);
-    history.add(newState);
+  /**
+   * @param file where to persist the history, null to keep it in memory only
+   * @param coalesceWindowMs the time within which the saved states are coalesced into one entry, 0 to disable
+   */
+  StateHistory(int capacity, StateHistoryFile file, long coalesceWindowMs) {
+    if (capacity < 1)
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    window = new Entry[capacity];
+    this.file = file;
+    this.coalesceWindowNanos = coalesceWindowMs * 1_000_000L;
+    if (file != null && file.head() >= 0) {
+      head = file.head();
+      base = head;
+      window[0] = new Entry(intern(file.load(head)));
+      size = 1;
+    }
   }
 
-  private boolean changed(State state) {
+  /**
+   * @return whether a new entry was added, as opposed to the state being unchanged or coalesced into the head
+   */
+  public synchronized boolean save(Collection<DeviceState> deviceStates) {
+    Set<DeviceState> deviceStateSet = new HashSet<>(deviceStates);
+    if (!changed(deviceStateSet))
+      return false;
+    long now = System.nanoTime();
+    boolean coalesce = coalescible && head > 0 && now - lastSaveNanos < coalesceWindowNanos;
+    lastSaveNanos = now;
+    coalescible = coalesceWindowNanos > 0;
+    while (base + size > head + 1)
+      release(--size);
+
+    if (coalesce) {
+      Entry entry = window[index(head - base)];
+      entry.intermediateStates.add(entry.state);
+      if (entry.intermediateStates.size() > MAX_INTERMEDIATE_STATES)
+        release(entry.intermediateStates.remove(0));
+      entry.state = intern(deviceStateSet);
+    } else {
+      if (size == window.length)
+        dropFirst();
+      window[index(size)] = new Entry(intern(deviceStateSet));
+      size++;
+      head++;
+    }
+    if (file != null)
+      file.save(head, deviceStateSet);
+    return !coalesce;
+  }
+
+  private boolean changed(Set<DeviceState> deviceStates) {
     if (head == -1)
       return true;
-    return !state.deviceStates.equals(history.get(head).deviceStates);
+    return !deviceStates.equals(window[index(head - base)].state.deviceStates);
   }
 
-  public boolean hasPrevious() {
-    return head > 0;
+  public synchronized boolean hasPrevious() {
+    return head > firstPosition();
   }
 
-  public boolean hasNext() {
-    return head < history.size() - 1;
+  public synchronized boolean hasNext() {
+    return head < endPosition() - 1;
   }
 
-  public Collection<DeviceState> loadPrevious() throws IllegalStateException {
+  public synchronized Collection<DeviceState> loadPrevious() throws IllegalStateException {
     if (!hasPrevious())
       throw new IllegalStateException();
-    head--;
-    return history.get(head).deviceStates;
+    return moveHead(head - 1);
   }
 
-  public Collection<DeviceState> loadNext() throws IllegalStateException {
+  public synchronized Collection<DeviceState> loadNext() throws IllegalStateException {
     if (!hasNext())
       throw new IllegalStateException();
-    head++;
-    return history.get(head).deviceStates;
+    return moveHead(head + 1);
+  }
+
+  /**
+   * Moves the head directly to the given position.
+   */
+  public synchronized Collection<DeviceState> loadAt(int position) throws IllegalStateException {
+    if (position < firstPosition() || position >= endPosition())
+      throw new IllegalStateException();
+    return moveHead(position);
+  }
+
+  /**
+   * Moves the head to the given position, returning the given intermediate state of its entry rather than the
+   * state of the entry.
+   * @param intermediate the index of the intermediate state, oldest first
+   */
+  public synchronized Collection<DeviceState> loadIntermediateAt(int position, int intermediate)
+      throws IllegalStateException {
+    if (position < base || position >= base + size)
+      throw new IllegalStateException();
+    List<State> intermediateStates = window[index(position - base)].intermediateStates;
+    if (intermediate < 0 || intermediate >= intermediateStates.size())
+      throw new IllegalStateException();
+    Collection<DeviceState> deviceStates = intermediateStates.get(intermediate).deviceStates;
+    moveHead(position);
+    return deviceStates;
+  }
+
+  /**
+   * @return the states at most the given number of positions away from the head, without moving it
+   */
+  public synchronized Timeline loadTimeline(int radius) {
+    int from = Math.max(firstPosition(), head - radius);
+    int to = Math.min(endPosition(), head + radius + 1);
+    List<Collection<DeviceState>> states = new ArrayList<>();
+    List<List<Collection<DeviceState>>> intermediateStates = new ArrayList<>();
+    for (int position = from; position < to; position++) {
+      if (position >= base && position < base + size) {
+        Entry entry = window[index(position - base)];
+        states.add(entry.state.deviceStates);
+        List<Collection<DeviceState>> entryIntermediateStates = new ArrayList<>();
+        entry.intermediateStates.forEach(state -> entryIntermediateStates.add(state.deviceStates));
+        intermediateStates.add(entryIntermediateStates);
+      } else {
+        states.add(Collections.unmodifiableSet(file.load(position)));
+        intermediateStates.add(List.of());
+      }
+    }
+    return new Timeline(from, head, states, intermediateStates);
+  }
+
+  private int firstPosition() {
+    return file != null ? 0 : base;
+  }
+
+  private int endPosition() {
+    return file != null ? file.size() : base + size;
+  }
+
+  private Collection<DeviceState> moveHead(int newHead) {
+    if (newHead < base - 1 || newHead > base + size) {
+      // Only the states saved to the file can be that far
+      while (size > 0)
+        release(--size);
+      start = 0;
+      base = newHead;
+      window[0] = new Entry(intern(file.load(newHead)));
+      size = 1;
+    } else if (newHead < base) {
+      if (size == window.length)
+        release(--size);
+      start = (start - 1 + window.length) % window.length;
+      base--;
+      window[start] = new Entry(intern(file.load(base)));
+      size++;
+    } else if (newHead >= base + size) {
+      if (size == window.length)
+        dropFirst();
+      window[index(size)] = new Entry(intern(file.load(base + size)));
+      size++;
+    }
+    head = newHead;
+    coalescible = false;
+    if (file != null)
+      file.saveHead(head);
+    return window[index(head - base)].state.deviceStates;
+  }
+
+  private int index(int positionInWindow) {
+    return (start + positionInWindow) % window.length;
+  }
+
+  private State intern(Set<DeviceState> deviceStates) {
+    State state = internedStates.computeIfAbsent(deviceStates, State::new);
+    state.references++;
+    return state;
+  }
+
+  private void dropFirst() {
+    release(0);
+    start = (start + 1) % window.length;
+    base++;
+    size--;
+  }
+
+  private void release(int positionInWindow) {
+    Entry entry = window[index(positionInWindow)];
+    window[index(positionInWindow)] = null;
+    release(entry.state);
+    entry.intermediateStates.forEach(this::release);
+  }
+
+  private void release(State state) {
+    if (--state.references == 0)
+      internedStates.remove(state.deviceStates);
   }
 
   public interface ChangeListener {
     void stateChanged();
   }
 
+  public static class Timeline {
+    // The position of the first of the states
+    public final int firstPosition;
+    public final int headPosition;
+    public final List<Collection<DeviceState>> states;
+    // The states coalesced into each of the states, oldest first
+    public final List<List<Collection<DeviceState>>> intermediateStates;
+
+    private Timeline(int firstPosition, int headPosition, List<Collection<DeviceState>> states,
+                     List<List<Collection<DeviceState>>> intermediateStates) {
+      this.firstPosition = firstPosition;
+      this.headPosition = headPosition;
+      this.states = states;
+      this.intermediateStates = intermediateStates;
+    }
+  }
+
   public static class DeviceState {
     public final Device device;
     public final String state;
@@ -73,11 +271,21 @@ public class StateHistory {
     }
   }
 
+  private static class Entry {
+    private State state;
+    private final List<State> intermediateStates = new ArrayList<>(0);
+
+    private Entry(State state) {
+      this.state = state;
+    }
+  }
+
   private static class State {
     private final Set<DeviceState> deviceStates;
+    private int references;
 
-    private State(Collection<DeviceState> deviceStates) {
-      this.deviceStates = new HashSet<>(deviceStates);
+    private State(Set<DeviceState> deviceStates) {
+      this.deviceStates = Collections.unmodifiableSet(deviceStates);
     }
   }
 
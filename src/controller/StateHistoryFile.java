@@ -0,0 +1,288 @@
+package controller;
+
+import controller.StateHistory.DeviceState;
+import controller.ui.UI;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static controller.Controller.exit;
+
+/**
+ * Persists the states of a {@link StateHistory} as fixed-size records appended to a file:
+ * "(magic, 4 bytes) (device count, 4 bytes)" followed by records "(position, 4 bytes) (command id per device in
+ * {@link Device} order, 2 bytes each)". A record with a negative position -(n + 1) marks the head moved to n.
+ * The commands are stored once in a dictionary file next to it as "(length, 2 bytes) (ASCII command)", the id of
+ * a command being its index in the dictionary.
+ * <p>
+ * Saving a state at a position discards the states after it, so a record is valid unless it's followed by a record
+ * at the same or an earlier position. The records are therefore read from the end backwards a page at a time,
+ * and only as far back as the states are needed.
+ */
+class StateHistoryFile {
+
+  private static final int MAGIC = 0x564c5248; // VLRH
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_SIZE = Integer.BYTES + Short.BYTES * Device.values().length;
+  private static final int PAGE_SIZE = RECORD_SIZE * 512;
+  private static final long COMPACTION_SIZE = 1L << 20;
+
+  private final Path path;
+  private final Path dictionaryPath;
+  private final List<String> commands = new ArrayList<>();
+  private final Map<String, Integer> commandIds = new HashMap<>();
+
+  private FileChannel channel;
+  private FileChannel dictionary;
+  private int size;
+  private int head = -1;
+  // The records before this offset haven't been read
+  private long scannedOffset;
+  // The positions from this on are known, either scanned or saved by this
+  private int lowestScannedPosition = Integer.MAX_VALUE;
+  private long[] offsets = new long[0];
+
+  StateHistoryFile(Path path) {
+    this.path = path;
+    this.dictionaryPath = path.resolveSibling(path.getFileName() + ".dict");
+    try {
+      open();
+      if (channel.size() > COMPACTION_SIZE)
+        compact();
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("History file read failed"));
+    }
+  }
+
+  /**
+   * @return the number of states
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return the position of the current state, -1 if there are none
+   */
+  int head() {
+    return head;
+  }
+
+  Set<DeviceState> load(int position) {
+    if (position < 0 || position >= size)
+      throw new IndexOutOfBoundsException(position);
+    try {
+      while (position < lowestScannedPosition)
+        scanPage();
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      read(channel, record, offsets[position]);
+      record.getInt();
+      Set<DeviceState> deviceStates = new HashSet<>();
+      for (Device device : Device.values())
+        deviceStates.add(new DeviceState(device, commands.get(record.getShort() & 0xFFFF)));
+      return deviceStates;
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("History file read failed"));
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Saves the state at the given position, discarding the states after it.
+   */
+  void save(int position, Collection<DeviceState> deviceStates) {
+    try {
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      record.putInt(position);
+      String[] states = new String[Device.values().length];
+      deviceStates.forEach(deviceState -> states[deviceState.device.ordinal()] = deviceState.state);
+      for (String state : states)
+        record.putShort((short)commandId(state));
+      long offset = append(record);
+
+      if (position >= offsets.length)
+        offsets = Arrays.copyOf(offsets, Math.max(position + 1, offsets.length * 2));
+      offsets[position] = offset;
+      // The saved position is known without scanning, so that loading it doesn't go looking for it in the file
+      lowestScannedPosition = Math.min(lowestScannedPosition, position);
+      size = position + 1;
+      head = position;
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("History file write failed"));
+    }
+  }
+
+  void saveHead(int head) {
+    try {
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      record.putInt(-(head + 1));
+      append(record);
+      this.head = head;
+    } catch (IOException e) {
+      UI.showError(e.getMessage());
+      exit(new IllegalStateException("History file write failed"));
+    }
+  }
+
+  private void open() throws IOException {
+    dictionary = FileChannel.open(dictionaryPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                  StandardOpenOption.WRITE);
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    if (channel.size() < HEADER_SIZE || read(channel, header, 0).getInt() != MAGIC
+        || header.getInt() != Device.values().length) {
+      if (channel.size() > 0)
+        System.err.println("Unsupported history file, starting a new history");
+      channel.truncate(0);
+      dictionary.truncate(0);
+      header.clear();
+      header.putInt(MAGIC).putInt(Device.values().length).flip();
+      channel.write(header, 0);
+    }
+    readDictionary();
+
+    // Leave out a possible incomplete record
+    long end = HEADER_SIZE + (channel.size() - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+    channel.truncate(end);
+    channel.position(end);
+    scannedOffset = end;
+    // The latest state record determines the number of states, and the head unless moved after it
+    while (size == 0 && scannedOffset > HEADER_SIZE)
+      scanPage();
+  }
+
+  private void readDictionary() throws IOException {
+    ByteBuffer contents = ByteBuffer.allocate(Math.toIntExact(dictionary.size()));
+    read(dictionary, contents, 0);
+    int end = 0;
+    while (contents.remaining() >= Short.BYTES) {
+      int length = contents.getShort() & 0xFFFF;
+      if (contents.remaining() < length)
+        break;
+      byte[] command = new byte[length];
+      contents.get(command);
+      addCommand(new String(command, StandardCharsets.US_ASCII));
+      end = contents.position();
+    }
+    // Leave out a possible incomplete entry
+    dictionary.truncate(end);
+    dictionary.position(end);
+  }
+
+  /**
+   * Reads the page of records preceding the ones read so far.
+   */
+  private void scanPage() throws IOException {
+    long pageStart = Math.max(HEADER_SIZE, scannedOffset - PAGE_SIZE);
+    ByteBuffer page = ByteBuffer.allocate((int)(scannedOffset - pageStart));
+    read(channel, page, pageStart);
+    for (long offset = scannedOffset - RECORD_SIZE; offset >= pageStart; offset -= RECORD_SIZE) {
+      int position = page.getInt((int)(offset - pageStart));
+      if (position < 0) {
+        if (size == 0 && head == -1)
+          head = -position - 1;
+        continue;
+      }
+      if (size == 0) {
+        size = position + 1;
+        offsets = new long[size];
+        if (head == -1)
+          head = position;
+      }
+      if (position < lowestScannedPosition) {
+        offsets[position] = offset;
+        lowestScannedPosition = position;
+      }
+    }
+    scannedOffset = pageStart;
+    if (scannedOffset == HEADER_SIZE && lowestScannedPosition > 0 && size > 0)
+      throw new IOException("History file is missing states");
+  }
+
+  /**
+   * Rewrites the file with only the valid records.
+   */
+  private void compact() throws IOException {
+    while (lowestScannedPosition > 0 && size > 0)
+      scanPage();
+    Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (FileChannel compacted = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                  StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(Device.values().length).flip();
+      compacted.write(header);
+      ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+      for (int position = 0; position < size; position++) {
+        record.clear();
+        read(channel, record, offsets[position]);
+        while (record.hasRemaining())
+          compacted.write(record);
+      }
+      if (head >= 0) {
+        ByteBuffer headRecord = ByteBuffer.allocate(RECORD_SIZE);
+        headRecord.putInt(-(head + 1)).position(RECORD_SIZE).flip();
+        while (headRecord.hasRemaining())
+          compacted.write(headRecord);
+      }
+    }
+    channel.close();
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    for (int position = 0; position < size; position++)
+      offsets[position] = HEADER_SIZE + (long)position * RECORD_SIZE;
+    channel.position(channel.size());
+  }
+
+  private int commandId(String command) throws IOException {
+    Integer id = commandIds.get(command);
+    if (id != null)
+      return id;
+    byte[] bytes = command.getBytes(StandardCharsets.US_ASCII);
+    ByteBuffer entry = ByteBuffer.allocate(Short.BYTES + bytes.length);
+    entry.putShort((short)bytes.length).put(bytes).flip();
+    while (entry.hasRemaining())
+      dictionary.write(entry);
+    return addCommand(command);
+  }
+
+  private int addCommand(String command) {
+    commands.add(command);
+    commandIds.put(command, commands.size() - 1);
+    return commands.size() - 1;
+  }
+
+  private long append(ByteBuffer record) throws IOException {
+    long offset = channel.position();
+    record.position(RECORD_SIZE).flip();
+    while (record.hasRemaining())
+      channel.write(record);
+    return offset;
+  }
+
+  private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0)
+        throw new IOException("Unexpected end of file");
+    }
+    return buffer.flip();
+  }
+
+}
@@ -0,0 +1,52 @@
+package controller;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Changes to the inputs and on/off statuses of any number of devices, applied at once by
+ * {@link InputStore#apply(StateUpdate)}.
+ */
+public class StateUpdate {
+
+  private final Map<Device, String> inputs;
+  private final Map<Device, Boolean> statuses;
+
+  private StateUpdate(Map<Device, String> inputs, Map<Device, Boolean> statuses) {
+    this.inputs = Collections.unmodifiableMap(inputs);
+    this.statuses = Collections.unmodifiableMap(statuses);
+  }
+
+  public Map<Device, String> inputs() {
+    return inputs;
+  }
+
+  public Map<Device, Boolean> statuses() {
+    return statuses;
+  }
+
+  public boolean isEmpty() {
+    return inputs.isEmpty() && statuses.isEmpty();
+  }
+
+  public static class Builder {
+    private final Map<Device, String> inputs = new EnumMap<>(Device.class);
+    private final Map<Device, Boolean> statuses = new EnumMap<>(Device.class);
+
+    public Builder setInput(Device device, String input) {
+      inputs.put(device, input);
+      return this;
+    }
+
+    public Builder setStatus(Device device, boolean on) {
+      statuses.put(device, on);
+      return this;
+    }
+
+    public StateUpdate create() {
+      return new StateUpdate(new EnumMap<>(inputs), new EnumMap<>(statuses));
+    }
+  }
+
+}
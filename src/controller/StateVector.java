@@ -0,0 +1,103 @@
+package controller;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the inputs and on/off statuses of all devices. The inputs are held as
+ * {@link CommandRegistry} ids and the statuses as bits, so that comparing and hashing snapshots is cheap.
+ */
+public class StateVector {
+
+  private final int[] inputIds;
+  private final int statusBits;
+
+  /**
+   * @param inputs the input of each device in {@link Device} order
+   * @param statuses the on/off status of each device in {@link Device} order
+   */
+  StateVector(String[] inputs, boolean[] statuses) {
+    this.inputIds = new int[inputs.length];
+    for (Device device : Device.values())
+      inputIds[device.ordinal()] = CommandRegistry.id(device, inputs[device.ordinal()]);
+    int statusBits = 0;
+    for (int i = 0; i < statuses.length; i++)
+      statusBits |= (statuses[i] ? 1 : 0) << i;
+    this.statusBits = statusBits;
+  }
+
+  private StateVector(int[] inputIds, int statusBits) {
+    this.inputIds = inputIds;
+    this.statusBits = statusBits;
+  }
+
+  public String input(Device device) {
+    return CommandRegistry.remoteCommand(inputIds[device.ordinal()]);
+  }
+
+  public boolean status(Device device) {
+    return (statusBits & 1 << device.ordinal()) != 0;
+  }
+
+  int inputId(Device device) {
+    return inputIds[device.ordinal()];
+  }
+
+  /**
+   * @return the on/off status of each device as the bit at its ordinal
+   */
+  int statusBits() {
+    return statusBits;
+  }
+
+  /**
+   * @return the input of each device in {@link Device} order
+   */
+  String[] inputs() {
+    String[] inputs = new String[inputIds.length];
+    for (Device device : Device.values())
+      inputs[device.ordinal()] = input(device);
+    return inputs;
+  }
+
+  /**
+   * @return the on/off status of each device in {@link Device} order
+   */
+  boolean[] statuses() {
+    boolean[] statuses = new boolean[inputIds.length];
+    for (Device device : Device.values())
+      statuses[device.ordinal()] = status(device);
+    return statuses;
+  }
+
+  /**
+   * @return this state with the given update applied
+   */
+  StateVector with(StateUpdate update) {
+    int[] inputIds = this.inputIds.clone();
+    int statusBits = this.statusBits;
+    for (Map.Entry<Device, String> input : update.inputs().entrySet())
+      inputIds[input.getKey().ordinal()] = CommandRegistry.id(input.getKey(), input.getValue());
+    for (Map.Entry<Device, Boolean> status : update.statuses().entrySet()) {
+      int bit = 1 << status.getKey().ordinal();
+      statusBits = status.getValue() ? statusBits | bit : statusBits & ~bit;
+    }
+    return new StateVector(inputIds, statusBits);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (o == null || getClass() != o.getClass())
+      return false;
+    StateVector that = (StateVector)o;
+    return statusBits == that.statusBits && Arrays.equals(inputIds, that.inputIds);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(inputIds) + statusBits;
+  }
+
+}
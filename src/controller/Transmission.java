@@ -0,0 +1,96 @@
+package controller;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * A button press setting the given devices to the given states, which is superseded by a later such press of the
+ * same devices. Should it be superseded before its turn to be transmitted, it's skipped, and if while being
+ * transmitted, the rest of its command series is cancelled. The commands transmitted are kept track of, so that
+ * the state actually reached can be saved in place of the intended one.
+ */
+class Transmission {
+
+  private final Set<Device> targets;
+
+  private boolean superseded;
+  private CompletableFuture<Void> transmitted;
+  private StateVector reached;
+  private final StateUpdate.Builder reachedUpdate = new StateUpdate.Builder();
+
+  /**
+   * @param targets the devices the press sets the state of
+   */
+  Transmission(Set<Device> targets) {
+    this.targets = targets;
+  }
+
+  boolean supersedes(Transmission earlier) {
+    return targets.containsAll(earlier.targets);
+  }
+
+  synchronized void supersede() {
+    superseded = true;
+    if (transmitted != null)
+      cancel(transmitted);
+  }
+
+  /**
+   * @param state the state before transmitting
+   * @param transmit transmits the command series, returning a future completed once transmitted
+   * @return the future returned by the transmit, cancelled should the press be superseded, or null if the press
+   * was superseded already
+   */
+  CompletableFuture<Void> start(StateVector state, Supplier<CompletableFuture<Void>> transmit) {
+    synchronized (this) {
+      if (superseded)
+        return null;
+      reached = state;
+    }
+    CompletableFuture<Void> transmitted = transmit.get();
+    synchronized (this) {
+      this.transmitted = transmitted;
+      if (superseded)
+        cancel(transmitted);
+    }
+    return transmitted;
+  }
+
+  /**
+   * Cancels the transmit asynchronously, as the cancellation waits for the command being transmitted.
+   */
+  private static void cancel(CompletableFuture<Void> transmitted) {
+    CompletableFuture.runAsync(() -> transmitted.cancel(false));
+  }
+
+  /**
+   * Keeps track of the state reached by the given command having been transmitted.
+   */
+  synchronized void commandTransmitted(int command) {
+    Device device = CommandRegistry.device(command);
+    if (device == null || reached == null)
+      return;
+    StateUpdate.Builder update = new StateUpdate.Builder();
+    boolean onCommand = CommandRegistry.isOnCommand(command);
+    boolean offCommand = CommandRegistry.isOffCommand(command);
+    if (onCommand || offCommand) {
+      boolean status = onCommand && offCommand ? !reached.status(device) : onCommand;
+      update.setStatus(device, status);
+      reachedUpdate.setStatus(device, status);
+    }
+    if (CommandRegistry.isInputCommand(command)) {
+      update.setInput(device, CommandRegistry.remoteCommand(command));
+      reachedUpdate.setInput(device, CommandRegistry.remoteCommand(command));
+    }
+    reached = reached.with(update.create());
+  }
+
+  /**
+   * @return the changes made by the commands transmitted so far
+   */
+  synchronized StateUpdate reachedUpdate() {
+    return reachedUpdate.create();
+  }
+
+}
@@ -0,0 +1,120 @@
+package controller;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the transmit program for each code strictly in the order the codes were submitted, waiting for each
+ * process to exit, up to {@link #TIMEOUT_MS}, before starting the next one. Submitting blocks while the queue is
+ * full, and starting a process blocks while the maximum number of processes, e.g. timed out ones not yet
+ * terminated, are alive. The time from spawn to exit is recorded per code.
+ */
+class TransmitExecutor {
+
+  private static final long TIMEOUT_MS = 5_000L;
+  private static final boolean PRINT_DEBUG = true;
+
+  private final String transmitPath;
+  private final BlockingQueue<Transmit> queue;
+  private final Semaphore processes;
+  private final Map<String, LongSummaryStatistics> latencies = new HashMap<>();
+  private final Map<String, Integer> failures = new HashMap<>();
+
+  TransmitExecutor(String transmitPath, int queueCapacity, int maxProcesses) {
+    this.transmitPath = transmitPath;
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.processes = new Semaphore(maxProcesses);
+
+    Thread thread = new Thread(this::run, "Transmit");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Blocks while the queue is full.
+   * @return a future completed with the exit code of the transmit program, or exceptionally should the program
+   * fail to start or time out
+   */
+  CompletableFuture<Integer> submit(String device, String code, int repeats) throws InterruptedException {
+    Transmit transmit = new Transmit(device, code, repeats);
+    queue.put(transmit);
+    return transmit.result;
+  }
+
+  private void run() {
+    while (true) {
+      try {
+        transmit(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void transmit(Transmit transmit) throws InterruptedException {
+    processes.acquire();
+    long start = System.nanoTime();
+    Process process;
+    try {
+      ProcessBuilder pb = transmit.repeats > 0
+          ? new ProcessBuilder(transmitPath, transmit.device, transmit.code, Integer.toString(transmit.repeats))
+          : new ProcessBuilder(transmitPath, transmit.device, transmit.code);
+      process = pb.start();
+    } catch (IOException e) {
+      processes.release();
+      transmit.result.completeExceptionally(e);
+      return;
+    }
+    process.onExit().thenRun(processes::release);
+
+    if (!process.waitFor(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+      process.destroyForcibly();
+      record(transmit, System.nanoTime() - start, false);
+      transmit.result.completeExceptionally(new TimeoutException("Transmit timed out: " + transmit));
+      return;
+    }
+    int exitCode = process.exitValue();
+    record(transmit, System.nanoTime() - start, exitCode == 0);
+    transmit.result.complete(exitCode);
+  }
+
+  private synchronized void record(Transmit transmit, long latencyNs, boolean succeeded) {
+    String key = transmit.toString();
+    LongSummaryStatistics statistics = latencies.computeIfAbsent(key, k -> new LongSummaryStatistics());
+    statistics.accept(TimeUnit.NANOSECONDS.toMillis(latencyNs));
+    if (!succeeded)
+      failures.merge(key, 1, Integer::sum);
+
+    if (PRINT_DEBUG)
+      System.out.println("Transmitted " + key + " in " + TimeUnit.NANOSECONDS.toMillis(latencyNs) + " ms"
+          + " (average " + Math.round(statistics.getAverage()) + " ms of " + statistics.getCount()
+          + ", failures " + failures.getOrDefault(key, 0) + ")");
+  }
+
+  private static class Transmit {
+    private final String device;
+    private final String code;
+    private final int repeats;
+    private final CompletableFuture<Integer> result = new CompletableFuture<>();
+
+    private Transmit(String device, String code, int repeats) {
+      this.device = device;
+      this.code = code;
+      this.repeats = repeats;
+    }
+
+    @Override
+    public String toString() {
+      return device + " " + code;
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+package controller;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate of the commands transmitted to each device with a token bucket per device: a device accepts a
+ * burst of up to its capacity of commands, after which a command may be transmitted whenever a token has been
+ * refilled. A device that has been idle long enough has a full bucket again.
+ * <p>
+ * Rather than counting the tokens, the time at which the bucket of each device will be full again is kept:
+ * each token taken pushes it one refill interval further, and a command taking n tokens is allowed while it's less
+ * than the capacity minus n refill intervals away. A command taking more tokens than the capacity is allowed once
+ * the bucket is full, the excess delaying the next commands.
+ */
+class TransmitRateLimiter {
+
+  private final int[] capacities = new int[Device.values().length];
+  private final long[] refillIntervals = new long[Device.values().length];
+  private final long[] fullAt = new long[Device.values().length];
+
+  /**
+   * @param capacities the capacity of the bucket of each device in {@link Device} order
+   * @param refillIntervalsMs the time in milliseconds it takes to refill a token of each device in {@link Device}
+   * order
+   */
+  TransmitRateLimiter(int[] capacities, long[] refillIntervalsMs) {
+    long now = System.nanoTime();
+    for (Device device : Device.values()) {
+      this.capacities[device.ordinal()] = capacities[device.ordinal()];
+      this.refillIntervals[device.ordinal()] = TimeUnit.MILLISECONDS.toNanos(refillIntervalsMs[device.ordinal()]);
+      fullAt[device.ordinal()] = now;
+    }
+  }
+
+  /**
+   * Takes the given number of tokens of the given device if there are that many, e.g. one for each time a repeated
+   * command is transmitted.
+   * @return 0 if the tokens were taken, otherwise the time in nanoseconds until there will be enough
+   */
+  synchronized long tryAcquire(Device device, int tokens) {
+    int i = device.ordinal();
+    long now = System.nanoTime();
+    long wait = fullAt[i] - (capacities[i] - Math.min(tokens, capacities[i])) * refillIntervals[i] - now;
+    if (wait > 0)
+      return wait;
+    fullAt[i] = Math.max(fullAt[i], now) + tokens * refillIntervals[i];
+    return 0;
+  }
+
+  /**
+   * @return whether the commands to every device are limited, a refill interval of 0 meaning no limit
+   */
+  boolean limitsAllDevices() {
+    for (long refillInterval : refillIntervals) {
+      if (refillInterval == 0)
+        return false;
+    }
+    return true;
+  }
+
+}
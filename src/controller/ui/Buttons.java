@@ -1,5 +1,6 @@
 package controller.ui;
 
+import controller.Device;
 import controller.ui.Button.Gradient;
 
 import java.awt.*;
@@ -28,6 +29,7 @@ class Buttons {
 
   static final Button UNDO = new Button("⏮", null);
   static final Button REDO = new Button("⏭", null);
+  static final Button TIMELINE = new Button("≡", null);
 
   static final List<Button> BACKLED_BUTTONS = asList(
       new Button("on",  "on",     DONT_SAVE_INPUT),
@@ -234,4 +236,17 @@ class Buttons {
                                      "flash", "flash", "jump7")
   );
 
+  static List<Button> forDevice(Device device) {
+    switch (device) {
+      case BACKLED:
+        return BACKLED_BUTTONS;
+      case FRONTLED:
+        return FRONTLED_BUTTONS;
+      case POTLED:
+        return POTLED_BUTTONS;
+      default:
+        throw new IllegalArgumentException("No buttons for " + device);
+    }
+  }
+
 }
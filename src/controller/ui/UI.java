@@ -2,6 +2,7 @@ package controller.ui;
 
 import controller.Controller;
 import controller.Device;
+import controller.StateHistory;
 import controller.ui.components.*;
 
 import javax.swing.*;
@@ -14,13 +15,21 @@ import java.awt.event.WindowEvent;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.function.Supplier;
 
 import static controller.Controller.exit;
 import static controller.ui.Buttons.REDO;
+import static controller.ui.Buttons.TIMELINE;
 import static controller.ui.Buttons.UNDO;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.concat;
 import static java.util.stream.Stream.of;
@@ -38,6 +47,7 @@ public class UI {
   private static final Color CONTROL_PANEL_COLOR = new Color(138, 142, 155);
 
   private static final Supplier<JLabel> BUTTON_PLACEHOLDER_SUPPLIER = JLabel::new;
+  private static final int TIMELINE_RADIUS = 15;
 
   public static void show() {
     SwingUtilities.invokeLater(() -> {
@@ -65,7 +75,17 @@ public class UI {
   }
 
   public static void showError(String message) {
-    JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
+    if (SwingUtilities.isEventDispatchThread()) {
+      JOptionPane.showMessageDialog(null, message, "Error", JOptionPane.ERROR_MESSAGE);
+      return;
+    }
+    try {
+      SwingUtilities.invokeAndWait(() -> showError(message));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (InvocationTargetException e) {
+      e.printStackTrace(System.err);
+    }
   }
 
   public static void confirmOrExit(String message) {
@@ -74,6 +94,18 @@ public class UI {
       exit();
   }
 
+  /**
+   * @return the distinct remote commands of the buttons of the given device that either save input or don't
+   */
+  public static List<String> getRemoteCommands(Device device, boolean savingInput) {
+    return Buttons.forDevice(device).stream()
+        .filter(Objects::nonNull)
+        .filter(button -> button.savesInput == savingInput)
+        .map(button -> button.remoteCommand)
+        .distinct()
+        .collect(toList());
+  }
+
   private static void setWindowLocationFromPropertiesFileOrElse(JFrame window, String propertiesFile, Runnable otherwise) {
     String[] pos = readProperty(propertiesFile, "LastWindowPos", "-1 -1").split(" ");
     Point point = new Point(Integer.parseInt(pos[0]), Integer.parseInt(pos[1]));
@@ -197,20 +229,70 @@ public class UI {
     redo.addActionListener(e -> Controller.redo());
     redo.setEnabled(false);
     redo.setPreferredSize(new Dimension(40, 40));
+    ButtonComponent timeline = new ButtonComponent(TIMELINE, controlPanel);
+    // The timeline is loaded off the event dispatch thread, as it may have to be read from the history file
+    timeline.addActionListener(e -> Controller.getTimeline(TIMELINE_RADIUS).thenAccept(states ->
+        SwingUtilities.invokeLater(() -> {
+          JPopupMenu menu = createTimelineMenu(states);
+          menu.show(timeline, 0, -menu.getPreferredSize().height);
+        })));
+    timeline.setEnabled(false);
+    timeline.setPreferredSize(new Dimension(40, 40));
 
     Controller.addStateChangeListener(() -> {
       undo.setEnabled(Controller.canUndo());
       redo.setEnabled(Controller.canRedo());
+      timeline.setEnabled(Controller.canUndo() || Controller.canRedo());
     });
 
     controlPanel.add(undo);
     controlPanel.add(redo);
+    controlPanel.add(timeline);
 
-    controlPanel.setPreferredSize(new Dimension(120, 60));
+    controlPanel.setPreferredSize(new Dimension(175, 60));
 
     return controlPanel;
   }
 
+  /**
+   * @return a menu of the states around the current one, the newest first, each jumping to that state when chosen.
+   * A state with intermediate states coalesced into it gets a submenu of them, newest first.
+   */
+  private static JPopupMenu createTimelineMenu(StateHistory.Timeline timeline) {
+    JPopupMenu menu = new JPopupMenu();
+    for (int i = timeline.states.size() - 1; i >= 0; i--) {
+      int position = timeline.firstPosition + i;
+      int steps = position - timeline.headPosition;
+      String label = (steps == 0 ? "" : String.format("%+d: ", steps)) + describe(timeline.states.get(i));
+      JMenuItem item = new JMenuItem(label);
+      item.setEnabled(steps != 0);
+      item.addActionListener(e -> Controller.jumpTo(position));
+      List<Collection<StateHistory.DeviceState>> intermediateStates = timeline.intermediateStates.get(i);
+      if (intermediateStates.isEmpty()) {
+        menu.add(item);
+        continue;
+      }
+      JMenu submenu = new JMenu(label);
+      submenu.add(item);
+      submenu.addSeparator();
+      for (int j = intermediateStates.size() - 1; j >= 0; j--) {
+        int intermediate = j;
+        JMenuItem intermediateItem = new JMenuItem(describe(intermediateStates.get(j)));
+        intermediateItem.addActionListener(e -> Controller.jumpToIntermediate(position, intermediate));
+        submenu.add(intermediateItem);
+      }
+      menu.add(submenu);
+    }
+    return menu;
+  }
+
+  private static String describe(Collection<StateHistory.DeviceState> state) {
+    return state.stream()
+        .sorted(Comparator.comparing(deviceState -> deviceState.device))
+        .map(deviceState -> deviceState.device.toString().toLowerCase() + " " + deviceState.state)
+        .collect(joining(", "));
+  }
+
   private static Container createCommonArea(Container controllers, Container controlPanel) {
     JLayeredPane layered = new JLayeredPane();
     layered.addComponentListener(new ComponentAdapter() {
@@ -278,9 +360,11 @@ public class UI {
       buttonComponent.setMaximumSize(buttonComponent.getPreferredSize());
 
       buttonComponent.addActionListener(e -> {
+        Map<Device, String> remoteCommands = new LinkedHashMap<>();
         for (CompundButton.DeviceCommand deviceCommand : button.deviceCommands) {
-          Controller.pressButton(deviceCommand.device, deviceCommand.remoteCommand, true, false);
+          remoteCommands.put(deviceCommand.device, deviceCommand.remoteCommand);
         }
+        Controller.pressButtons(remoteCommands);
         Controller.saveStateToHistory();
       });
       panel.add(buttonComponent);